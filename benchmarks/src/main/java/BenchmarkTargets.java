@@ -0,0 +1,122 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.TreeSet;
+import java.util.function.Supplier;
+
+/**
+ * Operations timed by the JMH benchmarks, with all setup done up front. JMH
+ * benchmarks must be in a package and packaged classes cannot see the default
+ * package, so the benchmarks look this class up by name once per trial.
+ */
+public class BenchmarkTargets {
+
+    private static final long SEED = 4365;  // seed of the generated networks, so runs repeat
+    private static final int MAX_PARENTS = 3;  // most parents of a generated node
+    private static final int WINDOW = 8;  // generated parents are among the previous WINDOW nodes
+
+    /**
+     * Gets an operation on a network, ready to be timed.
+     * @param operation enumerationAsk, eliminationAsk, eliminationAskCached, makeFactor,
+     *                  pointwiseMultiply or sumOut
+     * @param network alarm, ex1 or ex2 (read from the working directory), or random-N for a
+     *                generated network of N nodes (eliminated in min-fill order)
+     * @return the operation, returning its result so it is not optimized away
+     * @throws IOException if the network cannot be read
+     */
+    public static Supplier<Object> target(String operation, String network) throws IOException {
+        BayesNet bayesNet = network(network);
+        CompiledNet net = bayesNet.compile();
+        Driver driver = new Driver(Trace.NONE);
+
+        switch (operation) {
+            case "enumerationAsk": {
+                Query query = query(bayesNet, network);
+                return () -> driver.enumerationAsk(query);
+            }
+            case "eliminationAsk":
+            case "eliminationAskCached": {
+                Query query = query(bayesNet, network);
+                if (operation.equals("eliminationAsk")) {
+                    // Time building the factors; the cached variant times looking them up
+                    bayesNet.getFactorCache().setCapacity(0);
+                }
+                if (network.startsWith("random-")) {
+                    // The topological order makes factors over most of a large network
+                    driver.setOrdering(EliminationPlanner.Strategy.MIN_FILL);
+                }
+                return () -> driver.eliminationAsk(query);
+            }
+            default:
+                break;
+        }
+
+        // Factor operations use the largest family, with no evidence so the factors are full size
+        int child = 0;
+        for (int i = 1; i < net.size(); i++) {
+            if (net.getParents(i).length > net.getParents(child).length) {
+                child = i;
+            }
+        }
+        if (net.getParents(child).length == 0) {
+            throw new IllegalArgumentException(network + " has no edges");
+        }
+        int parent = net.getParents(child)[0];
+        Variable childVar = new Variable(net.getName(child), net.getStates(child));
+        Variable parentVar = new Variable(net.getName(parent), net.getStates(parent));
+        TreeSet<Variable> noEvidence = new TreeSet<>();
+        Factor parentFactor = bayesNet.makeFactor(parentVar, noEvidence);
+        Factor childFactor = bayesNet.makeFactor(childVar, noEvidence);
+
+        switch (operation) {
+            case "makeFactor":
+                // Time building the factor, not looking it up
+                bayesNet.getFactorCache().setCapacity(0);
+                return () -> bayesNet.makeFactor(childVar, noEvidence);
+            case "pointwiseMultiply":
+                return () -> childFactor.pointwiseMultiply(parentVar, parentFactor);
+            case "sumOut": {
+                Factor product = childFactor.pointwiseMultiply(parentVar, parentFactor);
+                return () -> product.sumOut(parentVar);
+            }
+            default:
+                throw new IllegalArgumentException("Unknown operation " + operation);
+        }
+    }
+
+    /**
+     * Loads or generates a network.
+     * @param network name of the network
+     * @return the Bayes Net
+     * @throws IOException if the network cannot be read
+     */
+    private static BayesNet network(String network) throws IOException {
+        if (network.startsWith("random-")) {
+            int size = Integer.parseInt(network.substring("random-".length()));
+            return new NetGenerator(NetGenerator.Topology.DAG, size, MAX_PARENTS, WINDOW, SEED).toBayesNet();
+        }
+        return Driver.loadBayesNet(new File(network + ".bn"));
+    }
+
+    /**
+     * Gets the query timed on a network.
+     * @param bayesNet the Bayes Net
+     * @param network name of the network
+     * @return the query
+     */
+    private static Query query(BayesNet bayesNet, String network) {
+        switch (network) {
+            case "alarm":
+                return Query.parse(bayesNet, "P(B | J=t,M=t)");
+            case "ex1":
+                return Query.parse(bayesNet, "P(A | C=t)");
+            case "ex2":
+                return Query.parse(bayesNet, "P(A | B=t,C=f)");
+            default:
+                // First node given the last and middle ones, so most of the network is relevant
+                CompiledNet net = bayesNet.compile();
+                int n = net.size();
+                return Query.parse(bayesNet, String.format("P(%s | %s=t,%s=f)",
+                        net.getName(0), net.getName(n-1), net.getName(n/2)));
+        }
+    }
+}
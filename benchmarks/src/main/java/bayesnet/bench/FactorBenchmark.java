@@ -0,0 +1,57 @@
+package bayesnet.bench;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Times the factor operations elimination is built from, on the largest family
+ * of each network.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FactorBenchmark {
+
+    @Param({"alarm", "ex1", "ex2", "random-16", "random-200"})
+    public String network;  // network the factors come from
+
+    private Supplier<Object> makeFactor;  // BayesNet.makeFactor of the child
+    private Supplier<Object> pointwiseMultiply;  // child factor times parent factor
+    private Supplier<Object> sumOut;  // parent summed out of their product
+
+    @Setup
+    public void setup() throws Exception {
+        makeFactor = Targets.lookup("makeFactor", network);
+        pointwiseMultiply = Targets.lookup("pointwiseMultiply", network);
+        sumOut = Targets.lookup("sumOut", network);
+    }
+
+    @Benchmark
+    public Object makeFactor() {
+        return makeFactor.get();
+    }
+
+    @Benchmark
+    public Object pointwiseMultiply() {
+        return pointwiseMultiply.get();
+    }
+
+    @Benchmark
+    public Object sumOut() {
+        return sumOut.get();
+    }
+}
@@ -0,0 +1,79 @@
+package bayesnet.bench;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Times whole queries with enumeration and variable elimination.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InferenceBenchmark {
+
+    /**
+     * Enumeration is exponential in the number of hidden variables, so it only
+     * gets the small networks.
+     */
+    @State(Scope.Benchmark)
+    public static class Enumeration {
+
+        @Param({"alarm", "ex1", "ex2", "random-16"})
+        public String network;  // network to query
+
+        Supplier<Object> ask;  // the query
+
+        @Setup
+        public void setup() throws Exception {
+            ask = Targets.lookup("enumerationAsk", network);
+        }
+    }
+
+    /**
+     * Elimination also gets a generated network of a few hundred nodes.
+     */
+    @State(Scope.Benchmark)
+    public static class Elimination {
+
+        @Param({"alarm", "ex1", "ex2", "random-16", "random-200"})
+        public String network;  // network to query
+
+        Supplier<Object> ask;  // the query, building every factor
+        Supplier<Object> cached;  // the query, taking its factors from the factor cache
+
+        @Setup
+        public void setup() throws Exception {
+            ask = Targets.lookup("eliminationAsk", network);
+            cached = Targets.lookup("eliminationAskCached", network);
+        }
+    }
+
+    @Benchmark
+    public Object enumerationAsk(Enumeration state) {
+        return state.ask.get();
+    }
+
+    @Benchmark
+    public Object eliminationAsk(Elimination state) {
+        return state.ask.get();
+    }
+
+    @Benchmark
+    public Object eliminationAskCached(Elimination state) {
+        return state.cached.get();
+    }
+}
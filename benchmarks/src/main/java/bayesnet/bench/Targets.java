@@ -0,0 +1,33 @@
+package bayesnet.bench;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.function.Supplier;
+
+/**
+ * Looks up the operations to time. The engine classes are in the default
+ * package, which cannot be imported from here, so they are reached through
+ * BenchmarkTargets by reflection, outside the timed code.
+ */
+final class Targets {
+
+    private Targets() {
+    }
+
+    /**
+     * Gets an operation on a network, ready to be timed.
+     * @param operation name of the operation
+     * @param network name of the network
+     * @return the operation
+     * @throws Exception if the network cannot be loaded
+     */
+    @SuppressWarnings("unchecked")
+    static Supplier<Object> lookup(String operation, String network) throws Exception {
+        try {
+            return (Supplier<Object>)Class.forName("BenchmarkTargets")
+                    .getMethod("target", String.class, String.class)
+                    .invoke(null, operation, network);
+        } catch (InvocationTargetException e) {
+            throw (Exception)e.getCause();
+        }
+    }
+}
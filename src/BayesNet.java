@@ -11,29 +11,33 @@ public class BayesNet {
     private class Node implements Comparable<Node> {
         Variable var;  // Holds information about the variable this node is representing
         double[] probabilities;  // Probabilities given the parent nodes' assignments
-        char[] parentNames;  // Names of the parent nodes
-        TreeSet<Node> children;  // child nodes
+        String[] parentNames;  // Names of the parent nodes
 
         /**
          * Creates a node in the Bayes Net.
          * @param varName name of the variable
+         * @param states names of the variable's states
          * @param pNames names of the parents
          * @param probs probabilities given the parents' assignments
          */
-        public Node(char varName, char[] pNames, double[] probs) {
-            var = new Variable(varName);
+        public Node(String varName, String[] states, String[] pNames, double[] probs) {
+            var = new Variable(varName, states);
             probabilities = probs;
             parentNames = pNames;
-            children = new TreeSet<>();
         }
 
         // Sort by alphabetical order
         public int compareTo(Node other){
-            return var.getName() - other.var.getName();
+            return var.compareTo(other.var);
         }
     }
 
-    private TreeSet<Node> nodes;  // Holds all the nodes in the Bayes Net
+    /** Default capacity of the factor cache, in factor entries (8 MB of probabilities). */
+    public static final long FACTOR_CACHE_CAPACITY = 1 << 20;
+
+    private TreeSet<Node> nodes;  // Holds all the nodes in the Bayes Net, null until needed if made from a CompiledNet
+    private volatile CompiledNet compiled;  // Compiled form of the nodes, null if out of date
+    private final FactorCache factorCache = new FactorCache(FACTOR_CACHE_CAPACITY);  // Factors made for earlier queries
 
     /**
      * Creates an empty Bayes Net.
@@ -43,55 +47,98 @@ public class BayesNet {
     }
 
     /**
-     * Adds a new variable with no parents.
+     * Creates a Bayes Net from its compiled form, such as one mapped from a
+     * {@link BinaryNet} file. The CPTs are only copied if a variable is added.
+     * @param net the compiled Bayes Net
+     */
+    public BayesNet(CompiledNet net) {
+        compiled = net;
+    }
+
+    /**
+     * Adds a new binary variable with no parents.
      * @param varName name of the variable that is being added
      * @param probability probability that the variable is true
      */
-    public void add(char varName, double probability) {
-        Node child = new Node(varName, new char[]{}, new double[]{probability});
-
-        // Connect variable's children to the node
-        for (Node n : nodes) {
-            for (char pName : n.parentNames) {
-                if (varName == pName) {
-                    child.children.add(n);
-                    break;
-                }
-            }
-        }
-
-        nodes.add(child);
+    public void add(String varName, double probability) {
+        add(new String[]{}, varName, new double[]{probability});
     }
 
     /**
-     * Adds a new variable with at least 1 parent.
+     * Adds a new binary variable with at least 1 parent.
      * @param parentNames names of the parent variables
      * @param childName name of the child variable that is being added
      * @param probabilities conditional probabilities with the binary string of index mapping
      *                      to the truth assignment (Ex: 100 -> {A=T,B=F,C=F})
      */
-    public void add(char[] parentNames, char childName, double[] probabilities) {
-        // Create node
-        Node child = new Node(childName, parentNames, probabilities);
+    public void add(String[] parentNames, String childName, double[] probabilities) {
+        add(parentNames, childName, Variable.BINARY, probabilities);
+    }
 
-        // Connect variable's parents and children to the node
-        int i = 0;
-        for (Node n : nodes) {
-            // Connect if n is parent
-            if (n.var.getName() == parentNames[i]) {
-                n.children.add(child);
+    /**
+     * Adds a new variable with any number of states. The rows of the CPT are numbered
+     * in mixed radix over the parents' values (first parent most significant). A binary
+     * variable has one probability per row, that it is true; any other variable has the
+     * probability of each of its states, row after row.
+     * @param parentNames names of the parent variables
+     * @param childName name of the child variable that is being added
+     * @param states names of the variable's states, in value order
+     * @param probabilities conditional probabilities of the variable
+     */
+    public void add(String[] parentNames, String childName, String[] states, double[] probabilities) {
+        // Parent and child links are resolved when the Bayes Net is compiled
+        if (nodes == null) {
+            copyNodes();
+        }
+        nodes.add(new Node(childName, states, parentNames, probabilities));
+        compiled = null;
+        factorCache.clear();
+    }
+
+    /**
+     * Rebuilds the nodes of a Bayes Net that was made from its compiled form.
+     */
+    private void copyNodes() {
+        CompiledNet net = compiled;
+        nodes = new TreeSet<>();
+        for (int i = 0; i < net.size(); i++) {
+            int[] parents = net.getParents(i);
+            String[] parentNames = new String[parents.length];
+            for (int p = 0; p < parents.length; p++) {
+                parentNames[p] = net.getName(parents[p]);
             }
-            // Connect if n is child
-            for (char pName : n.parentNames) {
-                if (childName == pName) {
-                    child.children.add(n);
-                    break;
-                }
+            double[] probabilities = new double[net.getCptLength(i)];
+            for (int e = 0; e < probabilities.length; e++) {
+                probabilities[e] = net.getCpt(i, e);
             }
+            nodes.add(new Node(net.getName(i), net.getStates(i), parentNames, probabilities));
         }
+    }
 
-        // Add the node
-        nodes.add(child);
+    /**
+     * Compiles the Bayes Net into its int-indexed form. The result is cached until
+     * the next variable is added.
+     * @return the compiled Bayes Net
+     */
+    public CompiledNet compile() {
+        CompiledNet net = compiled;
+        if (net == null) {
+            String[] names = new String[nodes.size()];
+            String[][] states = new String[names.length][];
+            String[][] parentNames = new String[names.length][];
+            double[][] probabilities = new double[names.length][];
+            int i = 0;
+            for (Node n : nodes) {
+                names[i] = n.var.getName();
+                states[i] = n.var.getStates();
+                parentNames[i] = n.parentNames;
+                probabilities[i] = n.probabilities;
+                i++;
+            }
+            net = new CompiledNet(names, states, parentNames, probabilities);
+            compiled = net;
+        }
+        return net;
     }
 
     /**
@@ -101,15 +148,16 @@ public class BayesNet {
      * @return list of variables in topological order
      */
     public ArrayList<Variable> getEnumVars(TreeSet<Variable> evidence) {
-        ArrayList<Variable> vars = topologicalOrder(false, null);
+        CompiledNet net = compile();
+        int[] assignment = getAssignment(evidence);
 
-        // Set evidence variables
-        for (Variable v : vars) {
-            for (Variable ev : evidence) {
-                if (v.getName() == ev.getName()) {
-                    v.setValue(ev.getValue());
-                    break;
-                }
+        ArrayList<Variable> vars = new ArrayList<>();
+        for (int node : net.getTopologicalOrder()) {
+            // Set evidence variables
+            if (assignment[node] >= 0) {
+                vars.add(new Variable(net.getName(node), net.getStates(node), assignment[node]));
+            } else {
+                vars.add(new Variable(net.getName(node), net.getStates(node)));
             }
         }
 
@@ -122,106 +170,140 @@ public class BayesNet {
      * @return list of variables
      */
     public ArrayList<Variable> getElimVars(TreeSet<Variable> evidence) {
-        ArrayList<Variable> vars = topologicalOrder(true, evidence);
+        CompiledNet net = compile();
+        int[] assignment = getAssignment(evidence);
+        boolean[] isEvidence = new boolean[net.size()];
+        for (int i = 0; i < isEvidence.length; i++) {
+            isEvidence[i] = assignment[i] >= 0;
+        }
 
         // Need to eliminate children before parents, so reverse topological order
-        Collections.reverse(vars);
+        int[] order = net.eliminationOrder(isEvidence);
+        ArrayList<Variable> vars = new ArrayList<>();
+        for (int i = order.length-1; i >= 0; i--) {
+            vars.add(new Variable(net.getName(order[i]), net.getStates(order[i])));
+        }
 
         return vars;
     }
 
     /**
-     * Gets the probability of {@code var} given the current evidence.
-     * @param var variable to find the probability of
+     * Converts a set of assigned variables into an assignment of the compiled net.
      * @param evidence given variables in the query
-     * @return the probability {@code var} is true/false (depends on
-     *         {@code var}'s value
+     * @return value of every node, -1 if not in {@code evidence}
      */
-    public double getProbability(Variable var, TreeSet<Variable> evidence) {
-        // Find the node of the variable that is being asked for
-        Node queryNode = null;
-        for (Node n : nodes) {
-            if (n.var.getName() == var.getName()) {
-                queryNode = n;
-                break;
-            }
-        }
-
-        // Filter out evidence variables not part of the asked variable's parents
-        Variable[] importantEvidence = new Variable[queryNode.parentNames.length];
-        for (int i = 0; i < importantEvidence.length; i++) {
-            for (Variable v : evidence) {
-                if (v.getName() == queryNode.parentNames[i]) {
-                    importantEvidence[i] = v;
-                    break;
+    public int[] getAssignment(Collection<Variable> evidence) {
+        CompiledNet net = compile();
+        int[] assignment = net.newAssignment();
+        for (Variable v : evidence) {
+            int node = net.indexOf(v.getName());
+            if (node >= 0) {
+                if (v.getValue() >= net.getCardinality(node)) {
+                    throw new IllegalArgumentException(v.getName() + " has no value " + v.getValue());
                 }
+                assignment[node] = v.getValue();
             }
         }
+        return assignment;
+    }
 
-        // Generate the index for the probability using the evidence truth assignments
-        int index = 0;
-        for (Variable v : importantEvidence) {
-            index <<= 1;
-            if (v.getValue()) {
-                index |= 1;
-            }
-        }
+    /**
+     * Gets the probability of {@code var} given the current evidence.
+     * @param var variable to find the probability of
+     * @param evidence given variables in the query
+     * @return the probability of {@code var}'s value
+     */
+    public double getProbability(Variable var, TreeSet<Variable> evidence) {
+        return getProbability(var, getAssignment(evidence));
+    }
 
-        // Return the value (1-value if asked for false)
-        if (var.getValue()) {
-            return queryNode.probabilities[index];
-        } else {
-            return 1 - queryNode.probabilities[index];
-        }
+    /**
+     * Gets the probability of {@code var} given an assignment of its parents.
+     * @param var variable to find the probability of
+     * @param assignment value of every node of the compiled net
+     * @return the probability of {@code var}'s value
+     */
+    public double getProbability(Variable var, int[] assignment) {
+        CompiledNet net = compile();
+        return net.getProbability(net.indexOf(var.getName()), var.getValue(), assignment);
     }
 
     /**
-     * Makes a factor for {@code currVar} using given evidence.
+     * Gets the cache of the factors made by {@link #makeFactor}, for its statistics
+     * and capacity. It is emptied whenever a variable is added.
+     * @return the factor cache
+     */
+    public FactorCache getFactorCache() {
+        return factorCache;
+    }
+
+    /**
+     * Makes a factor for {@code currVar} using given evidence. The factor only depends
+     * on the evidence in the variable's family, so factors are cached by those values
+     * and the returned factor may be shared with other queries.
      * @param currVar the variable to make a factor for
      * @param evidence the given evidence
      * @return the factor for {@code currVar}
      */
     public Factor makeFactor(Variable currVar, TreeSet<Variable> evidence) {
-        // Get the variables needed for the factor
-        TreeSet<Variable> varsToAdd = new TreeSet<>();
-        varsToAdd.add(currVar);
-        for (Node n : nodes) {
-            if (n.var.equals(currVar)) {
-                for (char c : n.parentNames) {
-                    varsToAdd.add(new Variable(c));
-                }
-                break;
-            }
+        CompiledNet net = compile();
+        int node = net.indexOf(currVar.getName());
+        int[] parents = net.getParents(node);
+
+        // Look the factor up by the node and the evidence values of its family
+        int[] key = new int[parents.length+2];
+        key[0] = node;
+        for (int i = 0; i <= parents.length; i++) {
+            String name = net.getName(i < parents.length ? parents[i] : node);
+            Variable given = evidence.ceiling(new Variable(name));
+            key[i+1] = given != null && given.getName().equals(name) ? given.getValue() : -1;
         }
-
-        // Remove factors in the evidence and set their values
-        for (Variable v1 : evidence) {
-            for (Variable v2 : varsToAdd) {
-                if (v2.equals(v1)) {
-                    v2.setValue(v1.getValue());
+        Factor cached = factorCache.get(key);
+        if (cached != null) {
+            return cached;
+        }
+        int[] assignment = getAssignment(evidence);
+
+        // Get the variables needed for the factor (alphabetical, minus the evidence)
+        int[] family = new int[parents.length+1];
+        int size = 0;
+        for (int i = 0; i <= parents.length; i++) {
+            int v = i < parents.length ? parents[i] : node;
+            if (assignment[v] < 0) {
+                int e = size++;
+                while (e > 0 && family[e-1] > v) {
+                    family[e] = family[e-1];
+                    e--;
                 }
+                family[e] = v;
             }
-            varsToAdd.remove(v1);
         }
 
-        Variable[] vars = new Variable[varsToAdd.size()];  // New variables
-        double[] probs = new double[1 << vars.length];  // New probabilities
-        vars = varsToAdd.toArray(vars);
+        Variable[] vars = new Variable[size];  // New variables
+        int length = 1;
+        for (int i = 0; i < size; i++) {
+            vars[i] = new Variable(net.getName(family[i]), net.getStates(family[i]));
+            length *= vars[i].getCardinality();
+        }
+        double[] probs = new double[length];  // New probabilities
 
         // Generate probabilities
-        for (int i = 0; i < 1 << vars.length; i++) {
-            // Set variable values for the index
-            int n = i;
-            for (int e = vars.length-1; e >= 0; e--) {
-                vars[e].setValue(n%2 == 1);
-                n >>= 1;
+        for (int i = 0; i < probs.length; i++) {
+            // Set variable values for the index (last variable is the lowest digit)
+            int rest = i;
+            for (int e = size-1; e >= 0; e--) {
+                int c = vars[e].getCardinality();
+                assignment[family[e]] = rest % c;
+                rest /= c;
             }
             // Copy probability for the variable assignment
-            probs[i] = getProbability(currVar, varsToAdd);
+            probs[i] = net.getProbability(node, assignment[node], assignment);
         }
 
         // Return the generated factor
-        return new Factor(vars, probs);
+        Factor factor = new Factor(vars, probs);
+        factorCache.put(key, factor);
+        return factor;
     }
 
     /**
@@ -229,123 +311,6 @@ public class BayesNet {
      * @return the number of variables in the Bayes Net
      */
     public int size() {
-        return nodes.size();
-    }
-
-    /**
-     * Gets the list of variables in topological order.
-     * @param orderSize true if variables should be ordered by size before
-     *                  alphabetical, used for elimination
-     * @param evidence given variables in the query
-     * @return list of variables in topological order
-     */
-    private ArrayList<Variable> topologicalOrder(boolean orderSize, TreeSet<Variable> evidence) {
-        // Count the number of parents each variable has
-        HashMap<Character, Integer> map = new HashMap<>();
-        for (Node n : nodes) {
-            map.putIfAbsent(n.var.getName(), 0);
-            for (Node child : n.children) {
-                map.putIfAbsent(child.var.getName(), 0);
-                map.put(child.var.getName(), map.get(child.var.getName())+1);
-            }
-        }
-
-        // Put all no-parent variables in a queue
-        LinkedList<Node> queue = new LinkedList<>();
-        for (Node n : nodes) {
-            if (map.get(n.var.getName()) == 0){
-                queue.add(n);
-            }
-        }
-
-        // Get topological order
-        ArrayList<Variable> vars = new ArrayList<>();
-        while (!queue.isEmpty()) {
-            Node curr;
-            if (!orderSize) {  // Order for enumeration
-                // Just get the next node in alphabetical order with 0 in-degree
-                curr = queue.remove();
-            } else {  // Order for elimination
-                // Since we will be reversing the topological order, we need to sort it descending
-                // by factor size then reverse alphabetical order
-
-                // Count factor size for first element in the queue
-                Iterator<Node> it = queue.iterator();
-                Node max = it.next();
-                int maxCount = 1;
-                // factorSize-- if Node variable is in the evidence
-                for (Variable v : evidence) {
-                    if (max.var.getName() == v.getName()) {
-                        maxCount = 0;
-                        break;
-                    }
-                }
-                // factorSize-- for all parents in the evidence
-                for (char par : max.parentNames) {
-                    maxCount++;
-                    for (Variable v : evidence) {
-                        if (par == v.getName()) {
-                            maxCount--;
-                            break;
-                        }
-                    }
-                }
-
-                // Count factor size for all other elements in the queue
-                while (it.hasNext()) {
-                    int count = 1;
-                    Node n = it.next();
-                    // factorSize-- if Node variable is in the evidence
-                    for (Variable v : evidence) {
-                        if (n.var.getName() == v.getName()) {
-                            count = 0;
-                            break;
-                        }
-                    }
-                    // factorSize-- for all parents in the evidence
-                    for (char par : n.parentNames) {
-                        count++;
-                        for (Variable v : evidence) {
-                            if (par == v.getName()) {
-                                count--;
-                                break;
-                            }
-                        }
-                    }
-
-                    // Keep the Node with the largest factor size, later alphabetically for ties
-                    if (count >= maxCount) {
-                        maxCount = count;
-                        max = n;
-                    }
-                }
-
-                // Find the Node and remove it from the queue
-                it = queue.iterator();
-                while (it.hasNext()) {
-                    if (it.next() == max) {
-                        it.remove();
-                        break;
-                    }
-                }
-
-                // Use that node for the topological sort
-                curr = max;
-            }
-            vars.add(new Variable(curr.var.getName()));
-
-            for (Node child : curr.children) {
-                // Decrement parent count by 1 from the current child
-                int numParents = map.get(child.var.getName())-1;
-                map.put(child.var.getName(), numParents);
-
-                // Add to queue if no parents remaining to be searched
-                if (numParents == 0) {
-                    queue.add(child);
-                }
-            }
-        }
-
-        return vars;
+        return nodes != null ? nodes.size() : compiled.size();
     }
 }
@@ -0,0 +1,312 @@
+import java.util.Arrays;
+
+/**
+ * Loopy belief propagation over the factor graph of a Bayes Net with evidence set:
+ * one factor per CPT, connected to its non-evidence variables. Messages live in
+ * flat double arrays, one entry per value of the edge's variable, and the factor-to-variable message
+ * that would change the most is always sent next (residual scheduling). Exact on
+ * polytrees, where the factor graph is a tree; elsewhere the marginals are
+ * approximate and each iteration is linear in the size of the network.
+ */
+public class BeliefPropagation {
+
+    private final Query query;  // evidence the messages are computed for
+    private final int[][] vars;  // variables of each factor, in node order
+    private final double[][] tables;  // probabilities of each factor
+    private final int[] edgeStart;  // first edge of each factor, one edge per factor variable
+    private final int[] edgeFactor;  // factor of each edge
+    private final int[][] varEdges;  // edges of each variable
+    private final int[] card;  // number of values of each variable
+    private final int[] messageStart;  // first message entry of each edge, one entry per value
+    private final double[] toVar;  // factor to variable message of each edge
+    private final double[] toFactor;  // variable to factor message of each edge
+    private final double[] pending;  // next factor to variable message of each edge
+    private final double[] residual;  // largest change pending on each edge
+    private final int[] heap;  // edges in a max-heap on residual
+    private final int[] heapPos;  // position of each edge in the heap
+    private long updates;  // messages sent
+    private boolean converged;  // true if every residual fell below the tolerance
+
+    /**
+     * Builds the factor graph for the evidence of a query.
+     * @param query query whose evidence is used (the query variable does not matter)
+     */
+    public BeliefPropagation(Query query) {
+        this.query = query;
+        CompiledNet net = query.getNet();
+        int n = net.size();
+
+        // One factor per CPT with the evidence set, constants left out
+        int[][] factorVars = new int[n][];
+        double[][] factorTables = new double[n][];
+        int numFactors = 0;
+        int numEdges = 0;
+        int[] assignment = query.newAssignment();
+        for (int i = 0; i < n; i++) {
+            int[] family = JunctionTree.family(query, i);
+            if (family.length > 0) {
+                factorVars[numFactors] = family;
+                factorTables[numFactors++] = JunctionTree.cptFactor(net, i, family, assignment);
+                numEdges += family.length;
+            }
+        }
+        vars = Arrays.copyOf(factorVars, numFactors);
+        tables = Arrays.copyOf(factorTables, numFactors);
+
+        // Edges in factor order, indexed from both ends
+        card = new int[n];
+        for (int v = 0; v < n; v++) {
+            card[v] = net.getCardinality(v);
+        }
+        edgeStart = new int[numFactors+1];
+        edgeFactor = new int[numEdges];
+        messageStart = new int[numEdges+1];
+        int[] degree = new int[n];
+        for (int f = 0; f < numFactors; f++) {
+            edgeStart[f+1] = edgeStart[f] + vars[f].length;
+            for (int i = 0; i < vars[f].length; i++) {
+                int e = edgeStart[f]+i;
+                edgeFactor[e] = f;
+                messageStart[e+1] = messageStart[e] + card[vars[f][i]];
+                degree[vars[f][i]]++;
+            }
+        }
+        varEdges = new int[n][];
+        for (int v = 0; v < n; v++) {
+            varEdges[v] = new int[degree[v]];
+            degree[v] = 0;
+        }
+        for (int f = 0; f < numFactors; f++) {
+            for (int i = 0; i < vars[f].length; i++) {
+                int v = vars[f][i];
+                varEdges[v][degree[v]++] = edgeStart[f]+i;
+            }
+        }
+
+        // Messages start out uniform
+        int numEntries = messageStart[numEdges];
+        toVar = new double[numEntries];
+        toFactor = new double[numEntries];
+        pending = new double[numEntries];
+        for (int e = 0; e < numEdges; e++) {
+            int k = messageStart[e+1] - messageStart[e];
+            Arrays.fill(toVar, messageStart[e], messageStart[e+1], 1.0 / k);
+            Arrays.fill(toFactor, messageStart[e], messageStart[e+1], 1.0 / k);
+        }
+        residual = new double[numEdges];
+        heap = new int[numEdges];
+        heapPos = new int[numEdges];
+    }
+
+    /**
+     * Passes messages until they settle or the iteration cap is reached.
+     * @param damping weight of the old message in each update, from 0 (none) up to but not including 1
+     * @param tolerance largest change of a message that counts as settled
+     * @param maxIterations cap on the messages sent, in multiples of the number of edges
+     */
+    public void run(double damping, double tolerance, int maxIterations) {
+        int numEdges = residual.length;
+        for (int e = 0; e < numEdges; e++) {
+            computePending(e);
+            heap[e] = e;
+            heapPos[e] = e;
+        }
+        for (int i = numEdges/2 - 1; i >= 0; i--) {
+            siftDown(i);
+        }
+
+        long maxUpdates = (long)maxIterations * numEdges;
+        converged = numEdges == 0;
+        while (numEdges > 0 && updates < maxUpdates) {
+            int e = heap[0];
+            if (residual[e] < tolerance) {
+                converged = true;
+                break;
+            }
+
+            // Send the message with the largest change
+            for (int x = messageStart[e]; x < messageStart[e+1]; x++) {
+                toVar[x] = (1 - damping) * pending[x] + damping * toVar[x];
+            }
+            residual[e] *= damping;
+            siftDown(0);
+            updates++;
+
+            // The variable now sends new messages to its other factors, whose messages change in turn
+            int v = vars[edgeFactor[e]][e - edgeStart[edgeFactor[e]]];
+            for (int out : varEdges[v]) {
+                if (out == e) {
+                    continue;
+                }
+                computeToFactor(v, out);
+                int f = edgeFactor[out];
+                for (int next = edgeStart[f]; next < edgeStart[f+1]; next++) {
+                    if (next != out) {
+                        computePending(next);
+                        siftUp(heapPos[next]);
+                        siftDown(heapPos[next]);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets the number of iterations run, each as many messages as there are edges.
+     * @return messages sent divided by the number of edges
+     */
+    public double getIterations() {
+        return residual.length == 0 ? 0 : (double)updates / residual.length;
+    }
+
+    /**
+     * Checks if the last run settled before the iteration cap.
+     * @return true if every pending change is below the tolerance
+     */
+    public boolean isConverged() {
+        return converged;
+    }
+
+    /**
+     * Gets the belief of a variable.
+     * @param node node index
+     * @return normalized probability of each value of the variable
+     */
+    public double[] getMarginal(int node) {
+        if (query.isEvidence(node)) {
+            return JunctionTree.evidenceMarginal(query, node);
+        }
+        double[] belief = new double[card[node]];
+        Arrays.fill(belief, 1);
+        for (int e : varEdges[node]) {
+            for (int v = 0; v < belief.length; v++) {
+                belief[v] *= toVar[messageStart[e] + v];
+            }
+        }
+        double total = 0;
+        for (double b : belief) {
+            total += b;
+        }
+        for (int v = 0; v < belief.length; v++) {
+            belief[v] /= total;
+        }
+        return belief;
+    }
+
+    /**
+     * Computes the message a factor would send over an edge now and how much it changed.
+     * @param e edge to the receiving variable
+     */
+    private void computePending(int e) {
+        int f = edgeFactor[e];
+        int start = edgeStart[f];
+        int k = vars[f].length;
+        int target = e - start;
+        double[] table = tables[f];
+
+        // Sum the factor times the messages of its other variables, tracking the value
+        // of each factor variable with an odometer (the last variable is the lowest digit)
+        double[] message = new double[card[vars[f][target]]];
+        int[] digit = new int[k];
+        for (int row = 0; row < table.length; row++) {
+            double p = table[row];
+            for (int j = 0; j < k && p != 0; j++) {
+                if (j != target) {
+                    p *= toFactor[messageStart[start+j] + digit[j]];
+                }
+            }
+            message[digit[target]] += p;
+            for (int j = k-1; j >= 0; j--) {
+                if (++digit[j] < card[vars[f][j]]) {
+                    break;
+                }
+                digit[j] = 0;
+            }
+        }
+        normalize(message, pending, messageStart[e]);
+        double change = 0;
+        for (int x = messageStart[e]; x < messageStart[e+1]; x++) {
+            change = Math.max(change, Math.abs(pending[x] - toVar[x]));
+        }
+        residual[e] = change;
+    }
+
+    /**
+     * Computes the message a variable sends to a factor: the product of the messages
+     * from its other factors.
+     * @param v sending variable
+     * @param e edge to the receiving factor
+     */
+    private void computeToFactor(int v, int e) {
+        double[] message = new double[card[v]];
+        Arrays.fill(message, 1);
+        for (int in : varEdges[v]) {
+            if (in != e) {
+                for (int x = 0; x < message.length; x++) {
+                    message[x] *= toVar[messageStart[in] + x];
+                }
+            }
+        }
+        normalize(message, toFactor, messageStart[e]);
+    }
+
+    /**
+     * Scales a message to sum to 1 (uniform if it is all zeros) and stores it.
+     * @param message message to store
+     * @param messages array to store it in
+     * @param offset index of the entry of value 0 in {@code messages}
+     */
+    private static void normalize(double[] message, double[] messages, int offset) {
+        double total = 0;
+        for (double m : message) {
+            total += m;
+        }
+        for (int x = 0; x < message.length; x++) {
+            messages[offset+x] = total > 0 ? message[x] / total : 1.0 / message.length;
+        }
+    }
+
+    /**
+     * Moves a heap entry up while its residual is larger than its parent's.
+     * @param i position in the heap
+     */
+    private void siftUp(int i) {
+        while (i > 0 && residual[heap[i]] > residual[heap[(i-1)/2]]) {
+            swap(i, (i-1)/2);
+            i = (i-1)/2;
+        }
+    }
+
+    /**
+     * Moves a heap entry down while a child has a larger residual.
+     * @param i position in the heap
+     */
+    private void siftDown(int i) {
+        while (true) {
+            int largest = i;
+            for (int c = 2*i+1; c <= 2*i+2 && c < heap.length; c++) {
+                if (residual[heap[c]] > residual[heap[largest]]) {
+                    largest = c;
+                }
+            }
+            if (largest == i) {
+                return;
+            }
+            swap(i, largest);
+            i = largest;
+        }
+    }
+
+    /**
+     * Swaps two heap entries.
+     * @param i position in the heap
+     * @param j position in the heap
+     */
+    private void swap(int i, int j) {
+        int t = heap[i];
+        heap[i] = heap[j];
+        heap[j] = t;
+        heapPos[heap[i]] = i;
+        heapPos[heap[j]] = j;
+    }
+}
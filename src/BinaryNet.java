@@ -0,0 +1,281 @@
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Binary form of a {@link CompiledNet} (.bnb), little-endian:
+ * <pre>
+ * header     "BNB1", version 2, nodes n, parent entries p, CPT entries c, string bytes s,
+ *            byte offset of the CPT block
+ * node table number of states of each node (int[n]), start of each node's parents (int[n+1])
+ * parents    parent indices of every node one after the other (int[p])
+ * strings    name of each node (alphabetical) followed by its state names, each as a
+ *            byte length (int) and UTF-8 bytes (s bytes in all), padded to 8 bytes
+ * CPT block  CPTs of every node one after the other, laid out as in {@link CompiledNet} (double[c])
+ * </pre>
+ * Reading copies the node table and leaves the CPT block in the mapped file, so
+ * nothing is parsed and processes that map the same file share its pages.
+ */
+public class BinaryNet {
+
+    private static final byte[] MAGIC = {'B', 'N', 'B', '1'};  // first bytes of every file
+    private static final int VERSION = 2;  // version of the layout
+    private static final int HEADER_SIZE = 28;  // bytes before the node table
+
+    /**
+     * Checks if a buffer holds a binary Bayes Net.
+     * @param buf contents of a file, from the current position
+     * @return true if it starts with the magic bytes
+     */
+    public static boolean isBinary(ByteBuffer buf) {
+        if (buf.remaining() < MAGIC.length) {
+            return false;
+        }
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (buf.get(buf.position() + i) != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads a binary Bayes Net.
+     * @param buf contents of the file, from the current position; usually a mapped file
+     * @return the compiled Bayes Net, its CPTs a view of {@code buf}
+     * @throws IOException if the contents are not a valid binary Bayes Net
+     */
+    public static CompiledNet read(ByteBuffer buf) throws IOException {
+        ByteBuffer file = buf.slice().order(ByteOrder.LITTLE_ENDIAN);
+        if (!isBinary(file) || file.limit() < 8) {
+            throw new IOException("not a binary Bayes Net");
+        }
+        int version = file.getInt(4);
+        if (version != VERSION || file.limit() < HEADER_SIZE) {
+            throw new IOException("unsupported version " + version);
+        }
+        int n = file.getInt(8);
+        int numParents = file.getInt(12);
+        int cptSize = file.getInt(16);
+        int stringBytes = file.getInt(20);
+        int cptStart = file.getInt(24);
+        long stringStart = HEADER_SIZE + 4L * (2L*n + 1 + numParents);
+        if (n < 0 || numParents < 0 || cptSize < 0 || stringBytes < 0 || cptStart < stringStart + stringBytes
+                || cptStart % 8 != 0 || cptStart + 8L * cptSize > file.limit()) {
+            throw new IOException("corrupt header");
+        }
+
+        // Node table
+        file.position(HEADER_SIZE);
+        IntBuffer ints = file.slice().order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+        int[] card = new int[n];
+        for (int i = 0; i < n; i++) {
+            card[i] = ints.get(i);
+            if (card[i] < 2) {
+                throw new IOException("corrupt node table");
+            }
+        }
+        int[][] parents = readParents(ints, n, numParents);
+
+        // Strings
+        file.position((int)stringStart);
+        file.limit((int)stringStart + stringBytes);
+        String[] names = new String[n];
+        String[][] states = new String[n][];
+        for (int i = 0; i < n; i++) {
+            names[i] = readString(file);
+            if (i > 0 && names[i].compareTo(names[i-1]) <= 0) {
+                throw new IOException("corrupt node table");
+            }
+            states[i] = new String[card[i]];
+            for (int v = 0; v < card[i]; v++) {
+                states[i][v] = readString(file);
+            }
+        }
+        file.limit(file.capacity());
+        return compiledNet(file, names, states, parents, cptStart, cptSize);
+    }
+
+    /**
+     * Reads the parents of every node.
+     * @param ints node table, the parent starts after the numbers of states
+     * @param n number of nodes
+     * @param numParents number of parent entries
+     * @return parent indices of each node
+     * @throws IOException if the parents are out of range
+     */
+    private static int[][] readParents(IntBuffer ints, int n, int numParents) throws IOException {
+        int[][] parents = new int[n][];
+        for (int i = 0; i < n; i++) {
+            int start = ints.get(n + i);
+            int end = ints.get(n + i + 1);
+            if (start < 0 || end < start || end > numParents || end - start > n) {
+                throw new IOException("corrupt node table");
+            }
+            parents[i] = new int[end - start];
+            for (int p = 0; p < parents[i].length; p++) {
+                parents[i][p] = ints.get(2*n + 1 + start + p);
+                if (parents[i][p] < 0 || parents[i][p] >= n) {
+                    throw new IOException("corrupt parent index");
+                }
+            }
+        }
+        return parents;
+    }
+
+    /**
+     * Reads a length-prefixed UTF-8 string.
+     * @param file contents of the file, positioned at the string
+     * @return the string
+     * @throws IOException if the string runs past the string table
+     */
+    private static String readString(ByteBuffer file) throws IOException {
+        if (file.remaining() < 4) {
+            throw new IOException("corrupt string table");
+        }
+        int length = file.getInt();
+        if (length <= 0 || length > file.remaining()) {
+            throw new IOException("corrupt string table");
+        }
+        byte[] bytes = new byte[length];
+        file.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Creates the compiled Bayes Net over the CPT block, which is left in the file.
+     * @param file contents of the file
+     * @param names names of the nodes
+     * @param states state names of each node
+     * @param parents parent indices of each node
+     * @param cptStart byte offset of the CPT block
+     * @param cptSize number of CPT entries
+     * @return the compiled Bayes Net
+     * @throws IOException if the node table does not match the CPT block
+     */
+    private static CompiledNet compiledNet(ByteBuffer file, String[] names, String[][] states, int[][] parents,
+                                           int cptStart, int cptSize) throws IOException {
+        file.position(cptStart);
+        file.limit(cptStart + 8 * cptSize);
+        DoubleBuffer cpt = file.slice().order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+        try {
+            return new CompiledNet(names, states, parents, cpt);
+        } catch (IllegalArgumentException e) {
+            throw new IOException(e.getMessage());
+        }
+    }
+
+    /**
+     * Writes a Bayes Net in binary form.
+     * @param net the compiled Bayes Net
+     * @param file file to write
+     * @throws IOException if the file cannot be written
+     */
+    public static void write(CompiledNet net, File file) throws IOException {
+        int n = net.size();
+        int numParents = 0;
+        for (int i = 0; i < n; i++) {
+            numParents += net.getParents(i).length;
+        }
+        int cptSize = net.getCptSize();
+        long tableEnd = HEADER_SIZE + 4L * (2L*n + 1 + numParents);
+        long stringBytes = 0;
+        for (int i = 0; i < n; i++) {
+            stringBytes += 4 + net.getName(i).getBytes(StandardCharsets.UTF_8).length;
+            for (String state : net.getStates(i)) {
+                stringBytes += 4 + state.getBytes(StandardCharsets.UTF_8).length;
+            }
+        }
+        long cptStart = (tableEnd + stringBytes + 7) / 8 * 8;
+        long size = cptStart + 8L * cptSize;
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Bayes Net too large for one mapping");
+        }
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+             FileChannel channel = raf.getChannel()) {
+            raf.setLength(0);
+            ByteBuffer out = channel.map(FileChannel.MapMode.READ_WRITE, 0, size).order(ByteOrder.LITTLE_ENDIAN);
+            out.put(MAGIC);
+            out.putInt(VERSION);
+            out.putInt(n);
+            out.putInt(numParents);
+            out.putInt(cptSize);
+            out.putInt((int)stringBytes);
+            out.putInt((int)cptStart);
+
+            for (int i = 0; i < n; i++) {
+                out.putInt(net.getCardinality(i));
+            }
+            int start = 0;
+            for (int i = 0; i < n; i++) {
+                out.putInt(start);
+                start += net.getParents(i).length;
+            }
+            out.putInt(start);
+            for (int i = 0; i < n; i++) {
+                for (int p : net.getParents(i)) {
+                    out.putInt(p);
+                }
+            }
+            for (int i = 0; i < n; i++) {
+                putString(out, net.getName(i));
+                for (String state : net.getStates(i)) {
+                    putString(out, state);
+                }
+            }
+
+            out.position((int)cptStart);
+            for (int i = 0; i < n; i++) {
+                int entries = net.getCptLength(i);
+                for (int e = 0; e < entries; e++) {
+                    out.putDouble(net.getCpt(i, e));
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes a length-prefixed UTF-8 string.
+     * @param out buffer to write to
+     * @param string string to write
+     */
+    private static void putString(ByteBuffer out, String string) {
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        out.putInt(bytes.length);
+        out.put(bytes);
+    }
+
+    /**
+     * Converts a .bn file to binary form.
+     * Usage: {@code <in.bn> <out.bnb>}
+     * @param args command line arguments
+     */
+    public static void main(String[] args) {
+        if (args.length != 2) {
+            System.out.println("Usage: <in.bn> <out.bnb>");
+            System.exit(1);
+        }
+        try {
+            NetLoader loader = new NetLoader();
+            BayesNet bayesNet = loader.load(new File(args[0]));
+            System.out.println("Loaded " + loader);
+            long start = System.nanoTime();
+            write(bayesNet.compile(), new File(args[1]));
+            System.out.printf("Wrote %s in %.3f ms%n", args[1], (System.nanoTime() - start) / 1e6);
+        } catch (FileNotFoundException e) {
+            System.out.println("File not found: " + e.getMessage());
+            System.exit(1);
+        } catch (IOException e) {
+            System.out.println("Conversion failed: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+}
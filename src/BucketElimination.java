@@ -0,0 +1,181 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Variable elimination by buckets. Every variable keeps the list of factors that
+ * mention it, so eliminating a variable only touches its own bucket, and the
+ * factors of the bucket are multiplied and summed in one pass by
+ * {@link Factor#productSumOut} without building their product.
+ */
+public class BucketElimination {
+
+    private final Query query;  // query to answer
+    private final EliminationPlanner.Plan plan;  // order the hidden variables are eliminated in
+    private final ArrayList<int[]> vars = new ArrayList<>();  // variables of each factor, in node order
+    private final ArrayList<double[]> tables = new ArrayList<>();  // probabilities of each factor
+    private final ArrayList<ArrayList<Integer>> buckets = new ArrayList<>();  // factors that mention each variable
+    private boolean[] used = new boolean[16];  // true for each factor already eliminated
+    private long largestFactor;  // entries of the largest factor built
+
+    /**
+     * Prepares the elimination of a query.
+     * @param query query to answer
+     * @param strategy how to order the hidden variables
+     */
+    public BucketElimination(Query query, EliminationPlanner.Strategy strategy) {
+        this(query, EliminationPlanner.plan(query, strategy));
+    }
+
+    /**
+     * Prepares the elimination of a query in an order already planned.
+     * @param query query to answer
+     * @param plan order to eliminate the hidden variables in
+     */
+    public BucketElimination(Query query, EliminationPlanner.Plan plan) {
+        this.query = query;
+        this.plan = plan;
+        CompiledNet net = query.getNet();
+        int n = net.size();
+        for (int i = 0; i < n; i++) {
+            buckets.add(new ArrayList<>());
+        }
+
+        // One factor per CPT with the evidence set
+        int[] assignment = query.newAssignment();
+        for (int i = 0; i < n; i++) {
+            int[] family = JunctionTree.family(query, i);
+            if (family.length > 0) {
+                addFactor(family, JunctionTree.cptFactor(net, i, family, assignment));
+            }
+        }
+    }
+
+    /**
+     * Gets the plan the hidden variables are eliminated by.
+     * @return the elimination plan
+     */
+    public EliminationPlanner.Plan getPlan() {
+        return plan;
+    }
+
+    /**
+     * Gets the size of the largest factor built so far.
+     * @return entries of the largest factor built
+     */
+    public long getLargestFactor() {
+        return largestFactor;
+    }
+
+    /**
+     * Eliminates every hidden variable and multiplies what is left.
+     * @return unnormalized probability of each value of the query variable
+     */
+    public double[] ask() {
+        for (int node : plan.getOrder()) {
+            eliminate(node);
+        }
+
+        // Only factors over the query variable are left (and constants, which cancel out)
+        int queryNode = query.getQueryNode();
+        double[] probabilities = new double[query.getNet().getCardinality(queryNode)];
+        Arrays.fill(probabilities, 1);
+        for (int f : buckets.get(queryNode)) {
+            if (!used[f]) {
+                for (int v = 0; v < probabilities.length; v++) {
+                    probabilities[v] *= tables.get(f)[v];
+                }
+            }
+        }
+        return probabilities;
+    }
+
+    /**
+     * Sums a variable out of the product of its bucket.
+     * @param node variable to eliminate
+     */
+    private void eliminate(int node) {
+        // Live factors of the bucket and the union of their variables, merged in node order
+        ArrayList<Integer> bucket = new ArrayList<>();
+        int[] merged = new int[0];
+        for (int f : buckets.get(node)) {
+            if (!used[f]) {
+                bucket.add(f);
+                used[f] = true;
+                merged = merge(merged, vars.get(f));
+            }
+        }
+        if (bucket.isEmpty()) {
+            return;
+        }
+
+        // The product is over the other variables in node order, then the eliminated one
+        int[] union = new int[merged.length];
+        int numVars = 0;
+        for (int v : merged) {
+            if (v != node) {
+                union[numVars++] = v;
+            }
+        }
+        union[numVars++] = node;
+
+        // Stride of each product variable in each factor of the bucket
+        CompiledNet net = query.getNet();
+        double[][] in = new double[bucket.size()][];
+        int[][] strides = new int[bucket.size()][numVars];
+        for (int k = 0; k < in.length; k++) {
+            int f = bucket.get(k);
+            in[k] = tables.get(f);
+            int[] fVars = vars.get(f);
+            int[] fStride = Factor.strides(net.getCardinalities(fVars));
+            for (int i = 0; i < fVars.length; i++) {
+                int v = fVars[i] == node ? numVars-1 : Arrays.binarySearch(union, 0, numVars-1, fVars[i]);
+                strides[k][v] = fStride[i];
+            }
+        }
+
+        int[] outVars = Arrays.copyOf(union, numVars-1);
+        double[] out = new double[net.getTableSize(outVars)];
+        Factor.productSumOut(in, strides, net.getCardinalities(union), out);
+        largestFactor = Math.max(largestFactor, (long)out.length * net.getCardinality(node));
+        addFactor(outVars, out);
+    }
+
+    /**
+     * Adds a factor and indexes it under each of its variables.
+     * @param factorVars variables of the factor, in node order
+     * @param table probabilities of the factor
+     */
+    private void addFactor(int[] factorVars, double[] table) {
+        int f = tables.size();
+        vars.add(factorVars);
+        tables.add(table);
+        if (f == used.length) {
+            used = Arrays.copyOf(used, 2*f);
+        }
+        for (int v : factorVars) {
+            buckets.get(v).add(f);
+        }
+    }
+
+    /**
+     * Merges two sorted sets of variables.
+     * @param a variables in node order
+     * @param b variables in node order
+     * @return the variables in either, in node order
+     */
+    static int[] merge(int[] a, int[] b) {
+        int[] out = new int[a.length + b.length];
+        int i = 0, e = 0, size = 0;
+        while (i < a.length || e < b.length) {
+            if (e == b.length || (i < a.length && a[i] < b[e])) {
+                out[size++] = a[i++];
+            } else if (i == a.length || b[e] < a[i]) {
+                out[size++] = b[e++];
+            } else {
+                out[size++] = a[i++];
+                e++;
+            }
+        }
+        return size == out.length ? out : Arrays.copyOf(out, size);
+    }
+}
@@ -0,0 +1,482 @@
+import java.nio.DoubleBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Immutable, int-indexed form of a {@link BayesNet}. Nodes are numbered in
+ * alphabetical order of their names and every lookup used during inference is an
+ * array access. The CPTs are one block of doubles, either on the heap or mapped
+ * from a {@link BinaryNet} file. A binary node stores P(node = t | parents) for
+ * each row; a node with more states stores the probability of every state, so its
+ * rows are {@code getCardinality(node)} entries wide. Rows are numbered in mixed
+ * radix over the parents' values, the first parent being the most significant digit.
+ */
+public class CompiledNet {
+
+    private final String[] names;  // name of each node
+    private final HashMap<String, Integer> index;  // node index of each name
+    private final String[][] states;  // state names of each node, in value order
+    private final int[] card;  // number of states of each node
+    private final int[][] parents;  // parent indices of each node, in CPT row order
+    private final int[][] children;  // child indices of each node, in alphabetical order
+    private final int[] cptOffset;  // offset of each node's CPT in cpt
+    private final DoubleBuffer cpt;  // CPTs of every node in one block
+    private final int[] topoOrder;  // topological order, alphabetical among ready nodes
+    private volatile long fingerprint;  // hash of the whole network, 0 until first asked for
+
+    /**
+     * Compiles a network.
+     * @param names names of the nodes in alphabetical order
+     * @param states state names of each node, in value order
+     * @param parentNames names of the parents of each node
+     * @param probabilities conditional probabilities of each node, laid out as in the CPT block
+     */
+    CompiledNet(String[] names, String[][] states, String[][] parentNames, double[][] probabilities) {
+        this(names, states, resolve(names, parentNames), pack(names, states, parentNames, probabilities));
+    }
+
+    /**
+     * Creates a network from its node table and CPT block.
+     * @param names names of the nodes in alphabetical order
+     * @param states state names of each node, in value order
+     * @param parents parent indices of each node, in CPT row order
+     * @param cpt CPTs of the nodes one after the other
+     */
+    CompiledNet(String[] names, String[][] states, int[][] parents, DoubleBuffer cpt) {
+        int n = names.length;
+        this.names = names;
+        this.states = states;
+        this.parents = parents;
+        this.cpt = cpt;
+        index = nameIndex(names);
+        card = new int[n];
+        for (int i = 0; i < n; i++) {
+            card[i] = states[i].length;
+            if (card[i] < 2) {
+                throw new IllegalArgumentException(names[i] + " needs at least 2 states");
+            }
+        }
+
+        // Children (filled in node order, so they come out alphabetical)
+        int[] numChildren = new int[n];
+        for (int i = 0; i < n; i++) {
+            for (int p : parents[i]) {
+                numChildren[p]++;
+            }
+        }
+        children = new int[n][];
+        for (int i = 0; i < n; i++) {
+            children[i] = new int[numChildren[i]];
+            numChildren[i] = 0;
+        }
+        for (int i = 0; i < n; i++) {
+            for (int p : parents[i]) {
+                children[p][numChildren[p]++] = i;
+            }
+        }
+
+        // Offset of each node's CPT in the block
+        cptOffset = new int[n];
+        long total = 0;
+        for (int i = 0; i < n; i++) {
+            cptOffset[i] = (int)total;
+            total += cptLength(card, parents, i);
+        }
+        if (total != cpt.limit()) {
+            throw new IllegalArgumentException("CPT block has " + cpt.limit() + " entries, expected " + total);
+        }
+
+        topoOrder = eliminationOrder(null);
+        if (topoOrder.length != n) {
+            throw new IllegalArgumentException("Bayes Net has a cycle");
+        }
+    }
+
+    /**
+     * Builds the name lookup table.
+     * @param names names of the nodes
+     * @return node index of each name
+     */
+    private static HashMap<String, Integer> nameIndex(String[] names) {
+        HashMap<String, Integer> index = new HashMap<>();
+        for (int i = 0; i < names.length; i++) {
+            if (index.put(names[i], i) != null) {
+                throw new IllegalArgumentException(names[i] + " is defined twice");
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Turns parent names into node indices.
+     * @param names names of the nodes in alphabetical order
+     * @param parentNames names of the parents of each node
+     * @return parent indices of each node
+     */
+    private static int[][] resolve(String[] names, String[][] parentNames) {
+        HashMap<String, Integer> index = nameIndex(names);
+        int[][] parents = new int[names.length][];
+        for (int i = 0; i < names.length; i++) {
+            parents[i] = new int[parentNames[i].length];
+            for (int p = 0; p < parents[i].length; p++) {
+                Integer parent = index.get(parentNames[i][p]);
+                if (parent == null) {
+                    throw new IllegalArgumentException(names[i] + " has unknown parent " + parentNames[i][p]);
+                }
+                parents[i][p] = parent;
+            }
+        }
+        return parents;
+    }
+
+    /**
+     * Gets the number of CPT entries of a node.
+     * @param card number of states of each node
+     * @param parents parent indices of each node
+     * @param node node index
+     * @return rows times entries per row
+     */
+    private static long cptLength(int[] card, int[][] parents, int node) {
+        long length = card[node] == 2 ? 1 : card[node];
+        for (int p : parents[node]) {
+            length *= card[p];
+        }
+        return length;
+    }
+
+    /**
+     * Lays all CPTs out in one contiguous block.
+     * @param names names of the nodes in alphabetical order
+     * @param states state names of each node, in value order
+     * @param parentNames names of the parents of each node
+     * @param probabilities conditional probabilities of each node
+     * @return the CPT block
+     */
+    private static DoubleBuffer pack(String[] names, String[][] states, String[][] parentNames, double[][] probabilities) {
+        HashMap<String, Integer> index = nameIndex(names);
+        long total = 0;
+        for (int i = 0; i < names.length; i++) {
+            long expected = states[i].length == 2 ? 1 : states[i].length;
+            for (String p : parentNames[i]) {
+                Integer parent = index.get(p);
+                expected *= parent != null ? states[parent].length : 1;
+            }
+            if (probabilities[i].length != expected) {
+                throw new IllegalArgumentException(String.format("%s has %d CPT entries, expected %d",
+                        names[i], probabilities[i].length, expected));
+            }
+            total += expected;
+        }
+        if (total > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("CPTs too large");
+        }
+        double[] cpt = new double[(int)total];
+        int offset = 0;
+        for (double[] p : probabilities) {
+            System.arraycopy(p, 0, cpt, offset, p.length);
+            offset += p.length;
+        }
+        return DoubleBuffer.wrap(cpt);
+    }
+
+    /**
+     * Gets the number of nodes.
+     * @return the number of nodes
+     */
+    public int size() {
+        return names.length;
+    }
+
+    /**
+     * Gets the name of a node.
+     * @param node node index
+     * @return name of the node
+     */
+    public String getName(int node) {
+        return names[node];
+    }
+
+    /**
+     * Gets the index of a node.
+     * @param name name of the node
+     * @return index of the node, -1 if there is no such node
+     */
+    public int indexOf(String name) {
+        Integer node = index.get(name);
+        return node != null ? node : -1;
+    }
+
+    /**
+     * Gets the number of states of a node.
+     * @param node node index
+     * @return number of states, 2 for a binary node
+     */
+    public int getCardinality(int node) {
+        return card[node];
+    }
+
+    /**
+     * Gets the number of states of several nodes.
+     * @param nodes node indices
+     * @return number of states of each node
+     */
+    public int[] getCardinalities(int[] nodes) {
+        int[] c = new int[nodes.length];
+        for (int i = 0; i < nodes.length; i++) {
+            c[i] = card[nodes[i]];
+        }
+        return c;
+    }
+
+    /**
+     * Gets the number of entries of a table over several nodes.
+     * @param nodes node indices
+     * @return product of the numbers of states
+     * @throws IllegalArgumentException if the table would not fit in an array
+     */
+    public int getTableSize(int[] nodes) {
+        long size = 1;
+        for (int node : nodes) {
+            size *= card[node];
+            if (size > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Table over " + nodes.length + " variables is too large");
+            }
+        }
+        return (int)size;
+    }
+
+    /**
+     * Gets the states of a node. The returned array must not be modified.
+     * @param node node index
+     * @return name of each state, in value order
+     */
+    public String[] getStates(int node) {
+        return states[node];
+    }
+
+    /**
+     * Gets the value of a state of a node.
+     * @param node node index
+     * @param state name of the state
+     * @return value of the state, -1 if the node has no such state
+     */
+    public int indexOfState(int node, String state) {
+        for (int v = 0; v < states[node].length; v++) {
+            if (states[node][v].equals(state)) {
+                return v;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Checks if every node is binary.
+     * @return true if every node has 2 states
+     */
+    public boolean isBinary() {
+        for (int c : card) {
+            if (c != 2) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Gets the parents of a node. The returned array must not be modified.
+     * @param node node index
+     * @return parent indices in CPT row order (first parent is the most significant digit)
+     */
+    public int[] getParents(int node) {
+        return parents[node];
+    }
+
+    /**
+     * Gets the children of a node. The returned array must not be modified.
+     * @param node node index
+     * @return child indices
+     */
+    public int[] getChildren(int node) {
+        return children[node];
+    }
+
+    /**
+     * Gets the nodes in topological order. The returned array must not be modified.
+     * @return node indices in topological order
+     */
+    public int[] getTopologicalOrder() {
+        return topoOrder;
+    }
+
+    /**
+     * Gets an entry of a node's CPT.
+     * @param node node index
+     * @param entry index in the node's CPT, from 0 to {@code getCptLength(node)-1}
+     * @return P(node = t | row) for a binary node, P(node = entry % card | row) otherwise
+     */
+    public double getCpt(int node, int entry) {
+        return cpt.get(cptOffset[node] + entry);
+    }
+
+    /**
+     * Gets the number of entries of a node's CPT.
+     * @param node node index
+     * @return rows times entries per row
+     */
+    public int getCptLength(int node) {
+        return (int)cptLength(card, parents, node);
+    }
+
+    /**
+     * Gets the probability of a node's value given an assignment of its parents.
+     * @param node node index
+     * @param value value of the node
+     * @param assignment value of every node, parents must be assigned
+     * @return P(node = value | parents)
+     */
+    public double getProbability(int node, int value, int[] assignment) {
+        int row = 0;
+        for (int p : parents[node]) {
+            row = row * card[p] + assignment[p];
+        }
+        if (card[node] == 2) {
+            double probability = cpt.get(cptOffset[node] + row);
+            return value == 1 ? probability : 1 - probability;
+        }
+        return cpt.get(cptOffset[node] + row * card[node] + value);
+    }
+
+    /**
+     * Gets the number of CPT entries of every node together.
+     * @return size of the CPT block
+     */
+    public int getCptSize() {
+        return cpt.limit();
+    }
+
+    /**
+     * Gets a 64-bit FNV-1a hash of the names, states, parents and CPTs. Equal networks
+     * have equal fingerprints in every run, and changing any of them changes it. It is
+     * computed once, on first use.
+     * @return the fingerprint
+     */
+    public long getFingerprint() {
+        long hash = fingerprint;
+        if (hash == 0) {
+            hash = 0xcbf29ce484222325L;
+            for (int i = 0; i < names.length; i++) {
+                hash = fnv(hash, names[i]);
+                for (String state : states[i]) {
+                    hash = fnv(hash, state);
+                }
+                hash = fnv(hash, parents[i].length);
+                for (int p : parents[i]) {
+                    hash = fnv(hash, p);
+                }
+            }
+            for (int e = 0; e < cpt.limit(); e++) {
+                hash = fnv(hash, Double.doubleToLongBits(cpt.get(e)));
+            }
+            fingerprint = hash;
+        }
+        return hash;
+    }
+
+    /**
+     * Mixes a string into an FNV-1a hash, its length and then each character.
+     * @param hash hash so far
+     * @param text string to mix in
+     * @return the new hash
+     */
+    private static long fnv(long hash, String text) {
+        hash = fnv(hash, text.length());
+        for (int c = 0; c < text.length(); c++) {
+            hash = fnv(hash, text.charAt(c));
+        }
+        return hash;
+    }
+
+    /**
+     * Mixes a value into an FNV-1a hash, one byte at a time.
+     * @param hash hash so far
+     * @param value value to mix in
+     * @return the new hash
+     */
+    private static long fnv(long hash, long value) {
+        for (int b = 0; b < 8; b++) {
+            hash ^= (value >>> (8*b)) & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * Creates an assignment with no variables set.
+     * @return an assignment of -1 for every node
+     */
+    public int[] newAssignment() {
+        int[] assignment = new int[names.length];
+        Arrays.fill(assignment, -1);
+        return assignment;
+    }
+
+    /**
+     * Gets a topological order for elimination. Among nodes whose parents have all
+     * been ordered, the one with the largest factor (counting non-evidence variables)
+     * is taken first, later alphabetically for ties.
+     * @param isEvidence true for each evidence node, null to take nodes alphabetically
+     * @return node indices in topological order
+     */
+    public int[] eliminationOrder(boolean[] isEvidence) {
+        int n = names.length;
+        int[] inDegree = new int[n];
+        for (int i = 0; i < n; i++) {
+            inDegree[i] = parents[i].length;
+        }
+
+        // Put all no-parent nodes in a queue
+        int[] queue = new int[n];
+        int head = 0;
+        int tail = 0;
+        for (int i = 0; i < n; i++) {
+            if (inDegree[i] == 0) {
+                queue[tail++] = i;
+            }
+        }
+
+        int[] order = new int[n];
+        int count = 0;
+        while (head < tail) {
+            if (isEvidence != null) {
+                // Move the node with the largest factor to the head of the queue
+                int max = head;
+                int maxSize = -1;
+                for (int q = head; q < tail; q++) {
+                    int size = isEvidence[queue[q]] ? 0 : 1;
+                    for (int p : parents[queue[q]]) {
+                        if (!isEvidence[p]) {
+                            size++;
+                        }
+                    }
+                    if (size >= maxSize) {
+                        maxSize = size;
+                        max = q;
+                    }
+                }
+                int node = queue[max];
+                System.arraycopy(queue, head, queue, head+1, max-head);
+                queue[head] = node;
+            }
+
+            int curr = queue[head++];
+            order[count++] = curr;
+            for (int child : children[curr]) {
+                if (--inDegree[child] == 0) {
+                    queue[tail++] = child;
+                }
+            }
+        }
+
+        return count == n ? order : Arrays.copyOf(order, count);
+    }
+}
@@ -0,0 +1,132 @@
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Multi-threaded stress check: answers the same queries from many threads on one
+ * shared Bayes Net and compares every answer with a single-threaded run.
+ */
+public class ConcurrencyCheck {
+
+    private static final String[] MECHANISMS = {"enum", "elim", "jtree", "penum", "memo", "bucket", "bp"};  // deterministic mechanisms to check: the exact ones and bp
+
+    /**
+     * Makes random queries over every variable of the Bayes Net.
+     * @param bayesNet Bayes Net for the queries
+     * @param perVariable number of queries per query variable
+     * @param random source of the evidence
+     * @return the queries
+     */
+    static ArrayList<Query> randomQueries(BayesNet bayesNet, int perVariable, Random random) {
+        CompiledNet net = bayesNet.compile();
+        ArrayList<Query> queries = new ArrayList<>();
+        for (int q = 0; q < net.size(); q++) {
+            for (int i = 0; i < perVariable; i++) {
+                // Every other variable is evidence with probability 1/3
+                TreeSet<Variable> evidence = new TreeSet<>();
+                for (int e = 0; e < net.size(); e++) {
+                    if (e != q && random.nextInt(3) == 0) {
+                        evidence.add(new Variable(net.getName(e), net.getStates(e),
+                                random.nextInt(net.getCardinality(e))));
+                    }
+                }
+                queries.add(new Query(bayesNet, new Variable(net.getName(q), net.getStates(q)), evidence));
+            }
+        }
+        return queries;
+    }
+
+    /**
+     * Runs the check.
+     * Usage: {@code <bayesnet> [threads] [rounds]}
+     * @param args command line arguments
+     */
+    public static void main(String[] args) {
+        if (args.length < 1 || args.length > 3) {
+            System.out.println("Usage: <bayesnet> [threads] [rounds]");
+            System.exit(1);
+        }
+        BayesNet bayesNet;
+        try {
+            bayesNet = Driver.loadBayesNet(new File(args[0]));
+        } catch (FileNotFoundException e) {
+            System.out.println("File not found.");
+            System.exit(1);
+            return;
+        } catch (IOException e) {
+            System.out.println("Invalid Bayes Net: " + e.getMessage());
+            System.exit(1);
+            return;
+        }
+        int numThreads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors() * 2;
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 50;
+
+        // Expected answers from a single thread
+        ArrayList<Query> queries = randomQueries(bayesNet, 8, new Random(4365));
+        double[][][] expected = new double[MECHANISMS.length][queries.size()][];
+        Driver driver = new Driver(Trace.NONE);
+        for (int m = 0; m < MECHANISMS.length; m++) {
+            for (int q = 0; q < queries.size(); q++) {
+                expected[m][q] = driver.ask(MECHANISMS[m], queries.get(q));
+            }
+        }
+
+        // Every thread answers all the queries in its own random order, many times
+        AtomicInteger mismatches = new AtomicInteger();
+        AtomicInteger answered = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+        ArrayList<Future<?>> futures = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int t = 0; t < numThreads; t++) {
+            long seed = t;
+            futures.add(pool.submit(() -> {
+                Driver d = new Driver(Trace.NONE);
+                ArrayList<Integer> order = new ArrayList<>();
+                for (int q = 0; q < queries.size(); q++) {
+                    order.add(q);
+                }
+                Random random = new Random(seed);
+                for (int r = 0; r < rounds; r++) {
+                    Collections.shuffle(order, random);
+                    for (int q : order) {
+                        int m = random.nextInt(MECHANISMS.length);
+                        double[] result = d.ask(MECHANISMS[m], queries.get(q));
+                        if (!Arrays.equals(result, expected[m][q])) {
+                            if (mismatches.incrementAndGet() <= 10) {
+                                System.out.printf("MISMATCH %s %s: %s != %s%n", MECHANISMS[m], queries.get(q),
+                                        Arrays.toString(result), Arrays.toString(expected[m][q]));
+                            }
+                        }
+                        answered.incrementAndGet();
+                    }
+                }
+            }));
+        }
+        try {
+            for (Future<?> f : futures) {
+                f.get();
+            }
+        } catch (ExecutionException | InterruptedException e) {
+            System.out.println("Check failed: " + e);
+            System.exit(1);
+        }
+        pool.shutdown();
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%d answers from %d threads in %.3f s, %d mismatches%n",
+                answered.get(), numThreads, seconds, mismatches.get());
+        if (mismatches.get() > 0) {
+            System.exit(1);
+        }
+    }
+}
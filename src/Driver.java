@@ -1,139 +1,282 @@
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.TreeSet;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
 import java.util.*;
-import java.util.regex.Pattern;
-import java.util.regex.Matcher;
+import java.util.concurrent.ForkJoinPool;
 
 public class Driver {
 
+    /** Names of the inference mechanisms. */
+    public static final List<String> MECHANISMS = Arrays.asList("enum", "elim", "jtree", "penum", "memo", "bucket", "lw", "gibbs", "bp", "auto");
+
+    private static final long SAMPLING_SEED = 4365;  // seed of the sampling mechanisms, so runs repeat
+    private static final int RESULT_CACHE_CAPACITY = 100000;  // answers kept by --result-cache-file alone
+
+    private Trace trace;  // where the steps of each query and its result are printed
+    private EliminationPlanner.Strategy ordering = EliminationPlanner.Strategy.TOPOLOGICAL;  // elimination order
+    private boolean pruning;  // true to remove the nodes irrelevant to each query first
+    private long samples = 100000;  // samples lw and gibbs draw per query
+    private long timeLimit;  // milliseconds lw and gibbs may take per query, 0 for none
+    private int chains;  // independent chains of lw and gibbs, 0 for the default
+    private double damping;  // weight bp gives the old message in each update
+    private double tolerance = 1e-12;  // largest message change bp counts as settled
+    private int maxIterations = 100;  // cap on the iterations of bp
+    private Metrics metrics = Metrics.NONE;  // where the work of each query is recorded
+    private ResultCache results;  // answers of earlier queries, null to answer every query afresh
+
+    // Work of the current query, counted whether or not metrics are on since a field increment is free
+    private long nodesVisited;  // enumerateAll calls
+    private long factorsMade;  // factors made by BayesNet.makeFactor
+    private long multiplies;  // Factor.pointwiseMultiply calls that made a factor
+    private long sumOuts;  // Factor.sumOut calls that removed a variable
+    private long largestFactor;  // entries of the largest factor made
+
+    /**
+     * Creates a driver that prints every step of each query and its result.
+     */
+    public Driver() {
+        this(new Trace(Trace.Level.FULL, System.out));
+    }
+
+    /**
+     * Creates a driver.
+     * @param trace where the steps of each query and its result are printed
+     */
+    public Driver(Trace trace) {
+        this.trace = trace;
+    }
+
+    /**
+     * Sets how eliminationAsk orders the hidden variables.
+     * @param ordering strategy for the elimination order
+     */
+    public void setOrdering(EliminationPlanner.Strategy ordering) {
+        this.ordering = ordering;
+    }
+
+    /**
+     * Sets the budget of the sampling mechanisms.
+     * @param samples samples to draw per query
+     * @param timeLimit milliseconds each query may take, 0 for none
+     * @param chains independent chains per query, 0 for {@link Sampler#defaultChains}
+     */
+    public void setSampling(long samples, long timeLimit, int chains) {
+        this.samples = samples;
+        this.timeLimit = timeLimit;
+        this.chains = chains;
+    }
+
+    /**
+     * Sets the convergence control of belief propagation.
+     * @param damping weight of the old message in each update, in [0, 1)
+     * @param tolerance largest message change that counts as settled
+     * @param maxIterations cap on the iterations
+     */
+    public void setPropagation(double damping, double tolerance, int maxIterations) {
+        this.damping = damping;
+        this.tolerance = tolerance;
+        this.maxIterations = maxIterations;
+    }
+
+    /**
+     * Sets if ask removes the nodes that cannot affect each query before inference.
+     * @param pruning true to prune barren and d-separated nodes
+     */
+    public void setPruning(boolean pruning) {
+        this.pruning = pruning;
+    }
+
+    /**
+     * Sets where ask records the work of each query: its time, the enumerateAll calls,
+     * the factors made, multiplied and summed out, the largest factor and the time of each
+     * elimination step. A driver answers one query at a time, but several drivers can
+     * share one {@link Metrics}.
+     * @param metrics registry to record into, {@link Metrics#NONE} to record nothing
+     */
+    public void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Sets where ask looks up and keeps the answers of exact mechanisms
+     * ({@link ResultCache#MECHANISMS}). Several drivers can share one cache.
+     * @param results cache of answers, null for none
+     */
+    public void setResultCache(ResultCache results) {
+        this.results = results;
+    }
+
     /**
      * Query to enumerate over the Bayes Net to find the probabilities of {@code queryVar}
      * given {@code evidence}.
      * @param queryVar variable to query
      * @param evidence given variables in the query
      * @param bayesNet Bayes Net for the query
+     * @return normalized probability of each value of {@code queryVar}
+     */
+    public double[] enumerationAsk(Variable queryVar, TreeSet<Variable> evidence, BayesNet bayesNet) {
+        return enumerationAsk(new Query(bayesNet, queryVar, evidence));
+    }
+
+    /**
+     * Query to enumerate over the Bayes Net. Only variables owned by this call are
+     * modified, so queries on the same Bayes Net can run concurrently.
+     * @param query query to answer
+     * @return normalized probability of each value of the query variable
      */
-    public void enumerationAsk(Variable queryVar, TreeSet<Variable> evidence, BayesNet bayesNet) {
-        // Get the variable ordering from the Bayes Net
+    public double[] enumerationAsk(Query query) {
+        BayesNet bayesNet = query.getBayesNet();
+        Variable queryVar = query.getQueryVariable();
+        TreeSet<Variable> evidence = query.getEvidenceVariables();
+
+        // Get the variable ordering from the Bayes Net, with the node of each variable
         ArrayList<Variable> vars = bayesNet.getEnumVars(evidence);
+        Variable[] order = vars.toArray(new Variable[0]);
+        CompiledNet net = bayesNet.compile();
+        int[] nodes = net.getTopologicalOrder();
+        int[] assignment = query.newAssignment();
+        int queryNode = query.getQueryNode();
 
         // Add query variable to the evidence
         evidence.add(queryVar);
 
-        // Set the query variable to false
-        for (Variable v : vars) {
-            if (v.getName() == queryVar.getName()) {
-                v.setValue(false);
-                break;
+        double[] probabilities = new double[queryVar.getCardinality()];
+        for (int value = 0; value < probabilities.length; value++) {
+            // Set the query variable to the value
+            for (Variable v : vars) {
+                if (v.getName().equals(queryVar.getName())) {
+                    v.setValue(value);
+                    break;
+                }
             }
-        }
-        queryVar.setValue(false);
+            queryVar.setValue(value);
+            assignment[queryNode] = value;
 
-        // Get the probability that the query variable is false
-        double falseProbability = enumerateAll(vars, evidence, bayesNet);
-
-        // Set the query variable to true
-        for (Variable v : vars) {
-            if (v.getName() == queryVar.getName()) {
-                v.setValue(true);
-                break;
-            }
+            // Get the probability of the value
+            probabilities[value] = enumerateAll(order, nodes, 0, evidence, assignment, net);
         }
-        queryVar.setValue(true);
-
-        // Get the probability that the query variable is true
-        double trueProbability = enumerateAll(vars, evidence, bayesNet);
 
         // Remove the query variable from the evidence
         evidence.remove(queryVar);
 
         // Print "RESULT" header
-        System.out.println();
-        System.out.println("RESULT:");
-
-        // Print false probability
-        queryVar.setValue(false);
-        System.out.printf("P(%s%s) = %.16f%n",
-                queryVar,
-                String.format("%s%s", evidence.isEmpty() ? "" : " | ", evidence.toString().replaceAll("[\\[\\]]", "")),
-                falseProbability/(falseProbability+trueProbability));
-
-        // Print true probability
-        queryVar.setValue(true);
-        System.out.printf("P(%s%s) = %.16f%n",
-                queryVar,
-                String.format("%s%s", evidence.isEmpty() ? "" : " | ", evidence.toString().replaceAll("[\\[\\]]", "")),
-                trueProbability/(falseProbability+trueProbability));
+        if (trace.isEnabled(Trace.Level.FULL)) {
+            trace.println("");
+        }
+        return printResult(queryVar, evidence, probabilities);
     }
 
     /**
      * Recursive call to calculate the probabilities of all the variables in {@code vars}.
      * @param vars variables to calculate probabilities of
      * @param evidence given variables in the query
+     * @param assignment values of the given variables, indexed by compiled node
      * @param bayesNet Bayes Net for the query
      * @return combined probability of all the variables in {@code vars}
      */
-    public double enumerateAll(ArrayList<Variable> vars, TreeSet<Variable> evidence, BayesNet bayesNet) {
+    public double enumerateAll(ArrayList<Variable> vars, TreeSet<Variable> evidence, int[] assignment, BayesNet bayesNet) {
+        CompiledNet net = bayesNet.compile();
+        int[] nodes = new int[vars.size()];
+        for (int i = 0; i < nodes.length; i++) {
+            nodes[i] = net.indexOf(vars.get(i).getName());
+            if (vars.get(i).isSet()) {
+                assignment[nodes[i]] = vars.get(i).getValue();
+            }
+        }
+        return enumerateAll(vars.toArray(new Variable[0]), nodes, 0, evidence, assignment, net);
+    }
+
+    /**
+     * Recursive call to calculate the probabilities of the variables from {@code pos} on.
+     * Variables are looked up by node index; whether one is set is read from
+     * {@code assignment}, and the variables and {@code evidence} are only kept up to
+     * date when the full trace prints them.
+     * @param vars variables to calculate probabilities of
+     * @param nodes node of each variable
+     * @param pos first variable still to process
+     * @param evidence given variables in the query
+     * @param assignment values of the set variables, indexed by compiled node
+     * @param net compiled Bayes Net for the query
+     * @return combined probability of the variables from {@code pos} on
+     */
+    private double enumerateAll(Variable[] vars, int[] nodes, int pos, TreeSet<Variable> evidence, int[] assignment,
+            CompiledNet net) {
+        nodesVisited++;
+
         // Base case
-        if (vars.isEmpty()) {
+        if (pos == vars.length) {
             return 1;
         }
 
         // Get the next variable to process
-        Variable first = vars.remove(0);
+        int node = nodes[pos];
+        boolean full = trace.isEnabled(Trace.Level.FULL);
         double retVal = 0;
 
-        if (first.isSet()) {
+        if (assignment[node] >= 0) {
             // Variable is set so only get the probability for its value
-            double probability = bayesNet.getProbability(first, evidence);
-            retVal = probability * enumerateAll(vars, evidence, bayesNet);
+            double probability = net.getProbability(node, assignment[node], assignment);
+            retVal = probability * enumerateAll(vars, nodes, pos+1, evidence, assignment, net);
         } else {
             // Variable is not set so get the total probability
+            Variable first = vars[pos];
 
-            // Calculate false first
-            first.setValue(false);
-            double probability = bayesNet.getProbability(first, evidence);
-            evidence.add(first);
-            retVal += probability * enumerateAll(vars, evidence, bayesNet);
-            evidence.remove(first);
-
-            // Then true
-            first.setValue(true);
-            probability = bayesNet.getProbability(first, evidence);
-            evidence.add(first);
-            retVal += probability * enumerateAll(vars, evidence, bayesNet);
-            evidence.remove(first);
+            // Add up every value in order (false then true for a binary variable)
+            for (int value = 0; value < net.getCardinality(node); value++) {
+                assignment[node] = value;
+                double probability = net.getProbability(node, value, assignment);
+                if (full) {
+                    first.setValue(value);
+                    evidence.add(first);
+                }
+                retVal += probability * enumerateAll(vars, nodes, pos+1, evidence, assignment, net);
+                if (full) {
+                    evidence.remove(first);
+                }
+            }
 
             // Unset value to undo recursive steps
-            first.unsetValue();
+            if (full) {
+                first.unsetValue();
+            }
+            assignment[node] = -1;
+        }
+
+        if (!full) {
+            return retVal;
         }
-        // Put variable back in the list to undo recursive steps
-        vars.add(0, first);
 
         // Build the output line
         StringBuilder sb = new StringBuilder();
-        for (int i = 0; i < bayesNet.size(); i++) {
-            if (i < vars.size()) {
-                sb.append(vars.get(i).getName()).append(' ');
+        for (int i = 0; i < net.size(); i++) {
+            if (pos + i < vars.length) {
+                sb.append(vars[pos + i].getName()).append(' ');
             } else {
                 sb.append("  ");
             }
         }
         sb.append("      | ");
         Iterator<Variable> it = evidence.iterator();
-        for (int i = 0; i < bayesNet.size(); i++) {
+        for (int i = 0; i < net.size(); i++) {
             if (it.hasNext()) {
                 Variable v = it.next();
-                sb.append(v.getName()).append('=').append(v.getValue() ? 't' : 'f').append(' ');
+                sb.append(v.getName()).append('=').append(v.getStates()[v.getValue()]).append(' ');
             } else {
                 sb.append("    ");
             }
         }
         sb.append("      = ").append(String.format("%.8f", retVal));
-        System.out.println(sb);
+        trace.println(sb.toString());
 
         // Return the combined probability
         return retVal;
@@ -145,58 +288,131 @@ public class Driver {
      * @param queryVar variable to query
      * @param evidence given variables in the query
      * @param bayesNet Bayes Net for the query
+     * @return normalized probability of each value of {@code queryVar}
      */
-    public void eliminationAsk(Variable queryVar, TreeSet<Variable> evidence, BayesNet bayesNet) {
-        // No factors at the very start
-        ArrayList<Factor> factors = new ArrayList<>();
+    public double[] eliminationAsk(Variable queryVar, TreeSet<Variable> evidence, BayesNet bayesNet) {
+        return eliminationAsk(new Query(bayesNet, queryVar, evidence));
+    }
 
-        // Get the variables in the Bayes Net in the following order:
-        // Children before parents -> smallest factor -> alphabetical
-        ArrayList<Variable> vars = bayesNet.getElimVars(evidence);
+    /**
+     * Query to run elimination over the Bayes Net. Only variables and factors owned
+     * by this call are created, so queries on the same Bayes Net can run concurrently.
+     * @param query query to answer
+     * @return normalized probability of each value of the query variable
+     */
+    public double[] eliminationAsk(Query query) {
+        BayesNet bayesNet = query.getBayesNet();
+        Variable queryVar = query.getQueryVariable();
+        TreeSet<Variable> evidence = query.getEvidenceVariables();
 
-        // Loop through every variable
-        for (Variable currVar : vars) {
-            // Print variable header
-            System.out.printf("----- Variable: %c -----%n", currVar.getName());
+        ArrayList<Factor> factors;
+        if (ordering != EliminationPlanner.Strategy.TOPOLOGICAL) {
+            EliminationPlanner.Plan plan = EliminationPlanner.plan(query, ordering);
+            if (trace.isEnabled(Trace.Level.STEP)) {
+                trace.println("Plan: " + plan);
+            }
+            factors = eliminatePlanned(query, plan);
+        } else {
+            // No factors at the very start (the default order prints no plan, so its trace is unchanged)
+            factors = new ArrayList<>();
 
-            // Create factor for current variable
-            factors.add(bayesNet.makeFactor(currVar, evidence));
+            // Loop through every variable in the Bayes Net in the following order:
+            // Children before parents -> smallest factor -> alphabetical
+            for (Variable currVar : bayesNet.getElimVars(evidence)) {
+                long stepStart = metrics.isEnabled() ? System.nanoTime() : 0;
 
-            // Sum out if current variable is a hidden variable
-            if (!queryVar.equals(currVar) && !evidence.contains(currVar)) {
-                sumOut(currVar, factors);
-            }
+                // Print variable header
+                if (trace.isEnabled(Trace.Level.STEP)) {
+                    trace.printf("----- Variable: %s -----%n", currVar.getName());
+                }
 
-            // Print current factors
-            System.out.println("Factors:");
-            for (Factor f : factors) {
-                System.out.println(f);
+                // Create factor for current variable
+                factors.add(makeFactor(bayesNet, currVar, evidence));
+
+                // Sum out if current variable is a hidden variable
+                if (!queryVar.equals(currVar) && !evidence.contains(currVar)) {
+                    sumOut(currVar, factors);
+                }
+
+                // Print current factors
+                printFactors(factors);
+
+                if (metrics.isEnabled()) {
+                    metrics.observe("bayesnet_elimination_step_seconds", (System.nanoTime() - stepStart) / 1e9,
+                            Metrics.TIME_BUCKETS);
+                }
             }
         }
 
         // Do final pointwise multiplication to make one factor
         pointwiseMultiply(queryVar, factors);
 
-        // Get true and false probabilities (not normalized)
-        double trueProbability = factors.get(0).getProbability(1);
-        double falseProbability = factors.get(0).getProbability(0);
+        // Get the probability of each value (not normalized)
+        // Factors left without variables are constants that cancel out when normalizing
+        Factor result = factors.get(0);
+        for (Factor f : factors) {
+            if (f.contains(queryVar)) {
+                result = f;
+            }
+        }
+        double[] probabilities = new double[queryVar.getCardinality()];
+        for (int value = 0; value < probabilities.length; value++) {
+            probabilities[value] = result.getProbability(value);
+        }
+
+        return printResult(queryVar, evidence, probabilities);
+    }
+
+    /**
+     * Normalizes the result of a query and prints it if the trace includes summaries.
+     * @param queryVar variable that was queried
+     * @param evidence given variables in the query
+     * @param probabilities unnormalized probability of each value of {@code queryVar}
+     * @return normalized probability of each value of {@code queryVar}
+     */
+    private double[] printResult(Variable queryVar, TreeSet<Variable> evidence, double[] probabilities) {
+        double total = 0;
+        for (double p : probabilities) {
+            total += p;
+        }
+        double[] result = new double[probabilities.length];
+        for (int value = 0; value < result.length; value++) {
+            result[value] = probabilities[value]/total;
+        }
+        return traceResult(queryVar, evidence, result);
+    }
+
+    /**
+     * Prints the result of a query if the trace includes summaries.
+     * @param queryVar variable that was queried
+     * @param evidence given variables in the query
+     * @param result normalized probability of each value of {@code queryVar}
+     * @return {@code result}
+     */
+    private double[] traceResult(Variable queryVar, TreeSet<Variable> evidence, double[] result) {
+        if (!trace.isEnabled(Trace.Level.SUMMARY)) {
+            return result;
+        }
 
         // Print result header
-        System.out.println("RESULT:");
+        trace.println("RESULT:");
+
+        // Print the probability of each value
+        for (int value = 0; value < result.length; value++) {
+            queryVar.setValue(value);
+            trace.printf("P(%s%s) = %.16f%n", queryVar, formatEvidence(evidence), result[value]);
+        }
 
-        // Print false probability
-        queryVar.setValue(false);
-        System.out.printf("P(%s%s) = %.16f%n",
-                queryVar,
-                String.format("%s%s", evidence.isEmpty() ? "" : " | ", evidence.toString().replaceAll("[\\[\\]]", "")),
-                falseProbability/(falseProbability+trueProbability));
+        return result;
+    }
 
-        // Print true probability
-        queryVar.setValue(true);
-        System.out.printf("P(%s%s) = %.16f%n",
-                queryVar,
-                String.format("%s%s", evidence.isEmpty() ? "" : " | ", evidence.toString().replaceAll("[\\[\\]]", "")),
-                trueProbability/(falseProbability+trueProbability));
+    /**
+     * Formats the evidence of a query the way it is printed after the query variable.
+     * @param evidence given variables in the query
+     * @return " | A = t, B = f" or "" if there is no evidence
+     */
+    static String formatEvidence(TreeSet<Variable> evidence) {
+        return String.format("%s%s", evidence.isEmpty() ? "" : " | ", evidence.toString().replaceAll("[\\[\\]]", ""));
     }
 
     /**
@@ -209,8 +425,15 @@ public class Driver {
         pointwiseMultiply(currVar, factors);
 
         // Then sum out all the factors individually
-        for (Factor f : factors) {
-            f.sumOut(currVar);
+        for (int i = 0; i < factors.size(); i++) {
+            if (!factors.get(i).contains(currVar)) {
+                continue;
+            }
+            Factor summed = factors.get(i).sumOut(currVar);
+            if (summed != factors.get(i)) {
+                sumOuts++;
+                factors.set(i, made(summed));
+            }
         }
     }
 
@@ -221,13 +444,18 @@ public class Driver {
      */
     public void pointwiseMultiply(Variable currVar, ArrayList<Factor> factors) {
         for (int i = 0; i < factors.size(); i++) {
+            // Factors without currVar multiply with nothing, so skip them without trying every pair
+            if (!factors.get(i).contains(currVar)) {
+                continue;
+            }
             for (int e = i+1; e < factors.size(); e++) {
                 // Try to multiply
                 Factor mult = factors.get(i).pointwiseMultiply(currVar, factors.get(e));
 
                 // If successful multiply, replace old factors with new factor
                 if (mult != null) {
-                    factors.set(i, mult);
+                    multiplies++;
+                    factors.set(i, made(mult));
                     factors.remove(e);
                     e--;
                 }
@@ -235,97 +463,809 @@ public class Driver {
         }
     }
 
+    /**
+     * Sums out the hidden variables in a planned order. Any order but the topological
+     * one needs every factor before the first variable is summed out, so they are all
+     * made up front. Each product keeps the place of the first factor multiplied into
+     * it, so the factors are multiplied in the order {@link #sumOut} would take them
+     * from the list, but only the ones with the variable are looked at.
+     * @param query query to answer
+     * @param plan order to sum out the hidden variables in
+     * @return the factors left, in the order they would be in the list
+     */
+    private ArrayList<Factor> eliminatePlanned(Query query, EliminationPlanner.Plan plan) {
+        BayesNet bayesNet = query.getBayesNet();
+        TreeSet<Variable> evidence = query.getEvidenceVariables();
+        CompiledNet net = query.getNet();
+        TreeMap<Integer, Factor> factors = new TreeMap<>();  // factors by the place of the first one multiplied in
+        ArrayList<HashSet<Integer>> scopes = new ArrayList<>();  // nodes of each factor, by the same place
+        ArrayList<TreeSet<Integer>> holders = new ArrayList<>();  // places of the factors each node is in
+        for (int i = 0; i < net.size(); i++) {
+            holders.add(new TreeSet<>());
+        }
+        for (int i = 0; i < net.size(); i++) {
+            factors.put(i, makeFactor(bayesNet, new Variable(net.getName(i), net.getStates(i)), evidence));
+            HashSet<Integer> scope = new HashSet<>();
+            scope.add(i);
+            for (int parent : net.getParents(i)) {
+                scope.add(parent);
+            }
+            for (int node : scope) {
+                holders.get(node).add(i);
+            }
+            scopes.add(scope);
+        }
+
+        for (int node : plan.getOrder()) {
+            long stepStart = metrics.isEnabled() ? System.nanoTime() : 0;
+            Variable currVar = new Variable(net.getName(node), net.getStates(node));
+
+            // Print variable header
+            if (trace.isEnabled(Trace.Level.STEP)) {
+                trace.printf("----- Variable: %s -----%n", currVar.getName());
+            }
+
+            // Multiply the factors with the variable into the first of them, then sum it out
+            if (node != query.getQueryNode() && !query.isEvidence(node) && !holders.get(node).isEmpty()) {
+                Integer[] with = holders.get(node).toArray(new Integer[0]);
+                int first = with[0];
+                Factor product = factors.get(first);
+                HashSet<Integer> scope = scopes.get(first);
+                for (int k = 1; k < with.length; k++) {
+                    multiplies++;
+                    product = made(product.pointwiseMultiply(currVar, factors.remove(with[k])));
+                    for (int v : scopes.get(with[k])) {
+                        holders.get(v).remove(with[k]);
+                        if (scope.add(v)) {
+                            holders.get(v).add(first);
+                        }
+                    }
+                    scopes.set(with[k], null);
+                }
+                Factor summed = product.sumOut(currVar);
+                if (summed != product) {
+                    sumOuts++;
+                    product = made(summed);
+                }
+                factors.put(first, product);
+                scope.remove(node);
+                holders.get(node).clear();
+            }
+
+            // Print current factors
+            printFactors(factors.values());
+
+            if (metrics.isEnabled()) {
+                metrics.observe("bayesnet_elimination_step_seconds", (System.nanoTime() - stepStart) / 1e9,
+                        Metrics.TIME_BUCKETS);
+            }
+        }
+        return new ArrayList<>(factors.values());
+    }
+
+    /**
+     * Prints the factors of an elimination step when tracing in full.
+     * @param factors the factors left after the step
+     */
+    private void printFactors(Collection<Factor> factors) {
+        if (trace.isEnabled(Trace.Level.FULL)) {
+            trace.println("Factors:");
+            for (Factor f : factors) {
+                trace.println(f.toString());
+            }
+        }
+    }
+
+    /**
+     * Makes the factor of a variable for the current query.
+     * @param bayesNet Bayes Net for the query
+     * @param var the variable to make a factor for
+     * @param evidence given variables in the query
+     * @return the factor for {@code var}
+     */
+    private Factor makeFactor(BayesNet bayesNet, Variable var, TreeSet<Variable> evidence) {
+        factorsMade++;
+        return made(bayesNet.makeFactor(var, evidence));
+    }
+
+    /**
+     * Keeps track of the largest factor the current query has made.
+     * @param factor a factor the query made
+     * @return the factor
+     */
+    private Factor made(Factor factor) {
+        largestFactor = Math.max(largestFactor, factor.size());
+        return factor;
+    }
+
+    /**
+     * Runs a query with the given mechanism.
+     * @param mechanism one of {@link #MECHANISMS}
+     * @param queryVar variable to query
+     * @param evidence given variables in the query
+     * @param bayesNet Bayes Net for the query
+     * @return normalized probability of each value of {@code queryVar}
+     */
+    public double[] ask(String mechanism, Variable queryVar, TreeSet<Variable> evidence, BayesNet bayesNet) {
+        return ask(mechanism, new Query(bayesNet, queryVar, evidence));
+    }
+
+    /**
+     * Runs a query with the given mechanism.
+     * @param mechanism one of {@link #MECHANISMS}
+     * @param query query to answer
+     * @return normalized probability of each value of the query variable
+     */
+    public double[] ask(String mechanism, Query query) {
+        if (!metrics.isEnabled()) {
+            return answer(mechanism, query);
+        }
+        nodesVisited = 0;
+        factorsMade = 0;
+        multiplies = 0;
+        sumOuts = 0;
+        largestFactor = 0;
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            double[] result = answer(mechanism, query);
+            failed = false;
+            return result;
+        } finally {
+            record(mechanism, System.nanoTime() - start, failed);
+        }
+    }
+
+    /**
+     * Records the work of the query that was just answered.
+     * @param mechanism mechanism that answered it
+     * @param nanos time it took
+     * @param failed true if it threw
+     */
+    private void record(String mechanism, long nanos, boolean failed) {
+        metrics.count("bayesnet_queries_total", 1, "mechanism", mechanism);
+        if (failed) {
+            metrics.count("bayesnet_query_failures_total", 1, "mechanism", mechanism);
+        }
+        metrics.observe("bayesnet_query_seconds", nanos / 1e9, Metrics.TIME_BUCKETS, "mechanism", mechanism);
+        if (nodesVisited > 0) {
+            metrics.count("bayesnet_enumeration_nodes_total", nodesVisited);
+            metrics.observe("bayesnet_query_enumeration_nodes", nodesVisited, Metrics.SIZE_BUCKETS);
+        }
+        if (factorsMade > 0) {
+            metrics.count("bayesnet_factors_made_total", factorsMade);
+            metrics.count("bayesnet_pointwise_multiplies_total", multiplies);
+            metrics.count("bayesnet_sum_outs_total", sumOuts);
+            metrics.max("bayesnet_factor_entries_max", largestFactor);
+            metrics.observe("bayesnet_query_factor_entries_max", largestFactor, Metrics.SIZE_BUCKETS);
+        }
+    }
+
+    /**
+     * Runs a query with the given mechanism, from the result cache if it has the answer.
+     * @param mechanism one of {@link #MECHANISMS}
+     * @param query query to answer
+     * @return normalized probability of each value of the query variable
+     */
+    private double[] answer(String mechanism, Query query) {
+        if (results == null || !ResultCache.MECHANISMS.contains(mechanism)) {
+            return infer(mechanism, query);
+        }
+        String key = ResultCache.key(mechanism, query);
+        double[] result = results.get(key);
+        if (result != null) {
+            if (trace.isEnabled(Trace.Level.STEP)) {
+                trace.println("Cached: " + key);
+            }
+            return traceResult(query.getQueryVariable(), query.getEvidenceVariables(), result);
+        }
+        result = infer(mechanism, query);
+        results.put(key, result);
+        return result;
+    }
+
+    /**
+     * Runs inference for a query with the given mechanism.
+     * @param mechanism one of {@link #MECHANISMS}
+     * @param query query to answer
+     * @return normalized probability of each value of the query variable
+     */
+    private double[] infer(String mechanism, Query query) {
+        if (pruning) {
+            QueryPruner.Result pruned = QueryPruner.prune(query);
+            if (trace.isEnabled(Trace.Level.STEP)) {
+                trace.println("Pruned: " + pruned);
+            }
+            query = pruned.getQuery();
+        }
+        if (query.isEvidence(query.getQueryNode())) {
+            // The query variable is given, nothing to infer
+            return printResult(query.getQueryVariable(), query.getEvidenceVariables(),
+                    JunctionTree.evidenceMarginal(query, query.getQueryNode()));
+        }
+        if (mechanism.equals("auto")) {
+            MechanismSelector.Choice choice = MechanismSelector.choose(query, ordering);
+            if (trace.isEnabled(Trace.Level.STEP)) {
+                trace.println("Auto: " + choice);
+            }
+            metrics.count("bayesnet_auto_choices_total", 1, "mechanism", choice.getMechanism());
+            mechanism = choice.getMechanism();
+            if (mechanism.equals("bucket")) {
+                // Bucket elimination runs the min-fill plan it was predicted with
+                return bucketEliminationAsk(query, new BucketElimination(query, choice.getFillPlan()));
+            }
+        }
+        if (mechanism.equals("enum")) {
+            return enumerationAsk(query);
+        } else if (mechanism.equals("elim")) {
+            return eliminationAsk(query);
+        } else if (mechanism.equals("jtree")) {
+            return junctionTreeAsk(query);
+        } else if (mechanism.equals("penum")) {
+            return parallelEnumerationAsk(query);
+        } else if (mechanism.equals("memo")) {
+            return memoEnumerationAsk(query);
+        } else if (mechanism.equals("bucket")) {
+            return bucketEliminationAsk(query);
+        } else if (mechanism.equals("lw")) {
+            return samplingAsk(query, Sampler.Method.LIKELIHOOD_WEIGHTING);
+        } else if (mechanism.equals("gibbs")) {
+            return samplingAsk(query, Sampler.Method.GIBBS);
+        } else if (mechanism.equals("bp")) {
+            double[] marginal = propagate(query).getMarginal(query.getQueryNode());
+            return printResult(query.getQueryVariable(), query.getEvidenceVariables(), marginal);
+        }
+        throw new IllegalArgumentException("Invalid mechanism, should be one of " + MECHANISMS);
+    }
+
+    /**
+     * Query to enumerate over the Bayes Net on the common fork/join pool.
+     * @param query query to answer
+     * @return normalized probability of each value of the query variable
+     */
+    public double[] parallelEnumerationAsk(Query query) {
+        ForkJoinPool pool = ForkJoinPool.commonPool();
+        double[] result = ParallelEnumeration.ask(query, pool, ParallelEnumeration.defaultForks(pool));
+        return printResult(query.getQueryVariable(), query.getEvidenceVariables(), result);
+    }
+
+    /**
+     * Query to enumerate over the Bayes Net, reusing sub-sums that have been computed before.
+     * @param query query to answer
+     * @return normalized probability of each value of the query variable
+     */
+    public double[] memoEnumerationAsk(Query query) {
+        MemoEnumeration enumeration = new MemoEnumeration(query);
+        double[] probabilities = enumeration.ask();
+        if (trace.isEnabled(Trace.Level.STEP)) {
+            trace.println("CPT lookups: " + enumeration.getLookups() + ", cache hits: " + enumeration.getHits());
+        }
+        return printResult(query.getQueryVariable(), query.getEvidenceVariables(), probabilities);
+    }
+
+    /**
+     * Query to answer by bucket elimination in the configured order.
+     * @param query query to answer
+     * @return normalized probability of each value of the query variable
+     */
+    public double[] bucketEliminationAsk(Query query) {
+        return bucketEliminationAsk(query, new BucketElimination(query, ordering));
+    }
+
+    /**
+     * Answers a query with a bucket elimination already planned.
+     * @param query query to answer
+     * @param elimination the elimination of the query
+     * @return normalized probability of each value of the query variable
+     */
+    private double[] bucketEliminationAsk(Query query, BucketElimination elimination) {
+        if (trace.isEnabled(Trace.Level.STEP)) {
+            trace.println("Plan: " + elimination.getPlan());
+        }
+        double[] result = elimination.ask();
+        if (trace.isEnabled(Trace.Level.STEP)) {
+            trace.println("Largest factor: " + elimination.getLargestFactor());
+        }
+        return printResult(query.getQueryVariable(), query.getEvidenceVariables(), result);
+    }
+
+    /**
+     * Query to estimate by sampling on the common fork/join pool.
+     * @param query query to answer
+     * @param method how the samples are drawn
+     * @return estimated probability of each value of the query variable
+     */
+    public double[] samplingAsk(Query query, Sampler.Method method) {
+        ForkJoinPool pool = ForkJoinPool.commonPool();
+        Sampler sampler = new Sampler(method, samples, timeLimit,
+                chains > 0 ? chains : Sampler.defaultChains(pool), SAMPLING_SEED);
+        Sampler.Estimate estimate = sampler.ask(query, pool);
+        double[] result = estimate.getProbabilities();
+        printResult(query.getQueryVariable(), query.getEvidenceVariables(), result);
+        if (trace.isEnabled(Trace.Level.SUMMARY)) {
+            trace.println("Estimate: " + estimate);
+        }
+        return result;
+    }
+
+    /**
+     * Runs belief propagation for the evidence of a query.
+     * @param query query whose evidence is used
+     * @return the factor graph with its messages settled
+     */
+    private BeliefPropagation propagate(Query query) {
+        BeliefPropagation propagation = new BeliefPropagation(query);
+        propagation.run(damping, tolerance, maxIterations);
+        if (trace.isEnabled(Trace.Level.STEP)) {
+            trace.printf("Iterations: %.2f, %s%n", propagation.getIterations(),
+                    propagation.isConverged() ? "converged" : "not converged");
+        }
+        return propagation;
+    }
+
+    /**
+     * Query to answer with a calibrated junction tree.
+     * @param query query to answer
+     * @return normalized probability of each value of the query variable
+     */
+    public double[] junctionTreeAsk(Query query) {
+        double[] marginal = new JunctionTree(query).getMarginal(query.getQueryNode());
+        return printResult(query.getQueryVariable(), query.getEvidenceVariables(), marginal);
+    }
+
+    /**
+     * Finds the probabilities of every variable given {@code evidence}. The junction tree
+     * is calibrated (and belief propagation run) once for all of them, other mechanisms
+     * answer one query per variable.
+     * @param mechanism one of {@link #MECHANISMS}
+     * @param evidence given variables
+     * @param bayesNet Bayes Net for the queries
+     * @return normalized probability of each value of each variable, in node order
+     */
+    public double[][] allMarginalsAsk(String mechanism, TreeSet<Variable> evidence, BayesNet bayesNet) {
+        CompiledNet net = bayesNet.compile();
+        double[][] marginals = new double[net.size()][];
+        JunctionTree tree = null;
+        BeliefPropagation propagation = null;
+        if (mechanism.equals("jtree") && !pruning) {
+            tree = new JunctionTree(new Query(bayesNet, new Variable(net.getName(0)), evidence));
+        } else if (mechanism.equals("bp") && !pruning) {
+            propagation = propagate(new Query(bayesNet, new Variable(net.getName(0)), evidence));
+        }
+        for (int i = 0; i < net.size(); i++) {
+            Query query = new Query(bayesNet, new Variable(net.getName(i), net.getStates(i)), evidence);
+            if (tree != null || propagation != null) {
+                double[] marginal = tree != null ? tree.getMarginal(i) : propagation.getMarginal(i);
+                marginals[i] = printResult(query.getQueryVariable(), evidence, marginal);
+            } else {
+                marginals[i] = ask(mechanism, query);
+            }
+        }
+        return marginals;
+    }
+
+    /**
+     * Finds the most probable values of some variables given the evidence by
+     * max-product elimination.
+     * @param query "P(* | ...)" for the most probable explanation of the evidence, or
+     *              "P(A,B | ...)" for the most probable values of A and B alone
+     * @param bayesNet Bayes Net for the query
+     * @return the most probable values and their joint probability with the evidence
+     */
+    public MaxProduct.Explanation maxProductAsk(String query, BayesNet bayesNet) {
+        return maxProductAsk(MaxProduct.parse(bayesNet, query));
+    }
+
+    /**
+     * Finds the most probable values of a parsed MPE or MAP query.
+     * @param maxProduct the prepared query
+     * @return the most probable values of the explained variables
+     */
+    public MaxProduct.Explanation maxProductAsk(MaxProduct maxProduct) {
+        long start = System.nanoTime();
+        MaxProduct.Explanation explanation = maxProduct.solve();
+        if (metrics.isEnabled()) {
+            // The factors are counted by MaxProduct, not by this driver
+            nodesVisited = 0;
+            factorsMade = 0;
+            record("mpe", System.nanoTime() - start, false);
+            metrics.max("bayesnet_factor_entries_max", maxProduct.getLargestFactor());
+        }
+        if (trace.isEnabled(Trace.Level.STEP)) {
+            trace.println("Largest factor: " + maxProduct.getLargestFactor());
+        }
+        if (trace.isEnabled(Trace.Level.SUMMARY)) {
+            TreeSet<Variable> joint = new TreeSet<>(explanation.getValues());
+            joint.addAll(maxProduct.getEvidence());
+            trace.println("RESULT:");
+            trace.printf("P(%s) = %.16e%n", joint.toString().replaceAll("[\\[\\]]", ""), explanation.getProbability());
+        }
+        return explanation;
+    }
+
+    /**
+     * Parses a query such as "P(B | J=t,M=t)" or "P(Weather | Sky=cloudy)".
+     * @param query query to parse
+     * @param evidence set to add the evidence variables of the query to
+     * @param net Bayes Net the names and states are looked up in
+     * @return the query variable
+     */
+    public static Variable parseQuery(String query, TreeSet<Variable> evidence, CompiledNet net) {
+        String q = query.trim();
+        if (!q.startsWith("P(") || !q.endsWith(")")) {
+            throw new IllegalArgumentException("Invalid query: " + query);
+        }
+        int bar = q.indexOf('|');
+        String name = q.substring(2, bar >= 0 ? bar : q.length()-1).trim();
+        int node = net.indexOf(name);
+        if (node < 0) {
+            throw new IllegalArgumentException("Unknown variable " + name);
+        }
+        parseEvidence(query, evidence, net);
+        return new Variable(name, net.getStates(node));
+    }
+
+    /**
+     * Parses the evidence of a query such as "P(B | J=t,M=t)".
+     * @param query query to parse
+     * @param evidence set to add the evidence variables of the query to
+     * @param net Bayes Net the names and states are looked up in
+     */
+    public static void parseEvidence(String query, TreeSet<Variable> evidence, CompiledNet net) {
+        String q = query.trim();
+        int bar = q.indexOf('|');
+        if (bar < 0) {
+            return;
+        }
+        String given = q.substring(bar+1, q.endsWith(")") ? q.length()-1 : q.length());
+        for (String item : given.split(",")) {
+            int eq = item.indexOf('=');
+            if (eq < 0) {
+                throw new IllegalArgumentException("Invalid evidence: " + item.trim());
+            }
+            String name = item.substring(0, eq).trim();
+            String state = item.substring(eq+1).trim();
+            int node = net.indexOf(name);
+            if (node < 0) {
+                throw new IllegalArgumentException("Unknown variable " + name);
+            }
+            int value = net.indexOfState(node, state);
+            if (value < 0) {
+                throw new IllegalArgumentException(name + " has no state " + state);
+            }
+            evidence.add(new Variable(name, net.getStates(node), value));
+        }
+    }
+
+    /**
+     * Reads a Bayes Net from a .bn or binary file.
+     * @param file file to read
+     * @return the Bayes Net in the file
+     * @throws FileNotFoundException if the file does not exist
+     * @throws IOException if the file cannot be read or is not a valid Bayes Net
+     */
+    public static BayesNet loadBayesNet(File file) throws IOException {
+        return new NetLoader().load(file);
+    }
+
+    /**
+     * Answers every query read from {@code in}, one per line, against the same Bayes Net.
+     * Each answer is printed as soon as it is computed, in input order, as
+     * "query \t P(value 0) \t P(value 1) ... \t milliseconds" (P(false) and P(true) for a
+     * binary variable). Blank lines and lines starting
+     * with '#' are skipped.
+     * @param mechanism one of {@link #MECHANISMS}
+     * @param bayesNet Bayes Net for the queries
+     * @param in reader of the queries
+     * @param out writer for the answers
+     * @throws IOException if the queries cannot be read
+     */
+    public void runBatch(String mechanism, BayesNet bayesNet, BufferedReader in, PrintStream out) throws IOException {
+        int count = 0;
+        int failed = 0;
+        long start = System.nanoTime();
+        String line;
+        while ((line = in.readLine()) != null) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+
+            long queryStart = System.nanoTime();
+            try {
+                if (mechanism.equals("mpe")) {
+                    MaxProduct.Explanation explanation = maxProductAsk(line, bayesNet);
+                    out.printf("%s\t%s\t%.16e\t%.3f%n", line, explanation, explanation.getProbability(),
+                            (System.nanoTime() - queryStart) / 1e6);
+                } else {
+                    double[] result = ask(mechanism, Query.parse(bayesNet, line));
+                    double millis = (System.nanoTime() - queryStart) / 1e6;
+                    out.print(line);
+                    for (double p : result) {
+                        out.printf("\t%.16f", p);
+                    }
+                    out.printf("\t%.3f%n", millis);
+                }
+            } catch (RuntimeException e) {
+                out.printf("%s\tERROR\t%s%n", line, e.getMessage());
+                failed++;
+            }
+            count++;
+
+            // Only flush when waiting on more input, so piped batches stay buffered
+            if (!in.ready()) {
+                out.flush();
+            }
+        }
+        out.flush();
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.err.printf("%d queries (%d failed) in %.3f s, %.1f queries/s%n",
+                count, failed, seconds, count / Math.max(seconds, 1e-9));
+        FactorCache cache = bayesNet.getFactorCache();
+        if (cache.getHits() + cache.getMisses() > 0) {
+            System.err.println("Factor cache: " + cache);
+        }
+    }
+
 	/**
      * Parses args from the command line and the input file.
+     * Usage: {@code <bayesnet> <elim|enum|jtree|penum|memo|bucket|lw|gibbs|bp|auto> <query> [trace options]}, where a query
+     * of "P(* | ...)" asks for every variable and auto runs whichever of enum, elim and bucket the
+     * {@link MechanismSelector} predicts is fastest, or
+     * {@code <bayesnet> mpe <query>} to find the most probable values of the variables of the
+     * query ("P(* | ...)" for all of them) with {@link MaxProduct}, or
+     * {@code <bayesnet> <mechanism> --batch [queryfile] [trace options]} to answer one query per line
+     * of {@code queryfile} (standard input if omitted), or
+     * {@code --server [options] [name=]file.bn ...} to start a {@link QueryServer}, or
+     * {@code --stress <bayesnet> [threads] [rounds]} to run the {@link ConcurrencyCheck}, or
+     * {@code --convert <in.bn> <out.bnb>} to write a {@link BinaryNet}, or
+     * {@code --generate [options] <out.bn> [queries.txt]} to write a random network with the
+     * {@link NetGenerator}. A Bayes Net can be given in either form.
+     * Trace options are {@code --trace <none|summary|step|full>} (default full for a single
+     * query, none for a batch), {@code --trace-file <file>} and {@code --async} (with a trace file only).
+     * {@code --order <topological|min-degree|min-fill|weighted-min-fill|best>} picks the
+     * elimination order of elim and bucket (default topological), and {@code --prune} removes
+     * the nodes that cannot affect each query first. {@code --samples <n>} (default 100000),
+     * {@code --time-limit <ms>} and {@code --chains <n>} bound the sampling mechanisms lw and gibbs.
+     * {@code --damping <d>} (default 0), {@code --tolerance <t>} (default 1e-12) and
+     * {@code --max-iterations <n>} (default 100) control the convergence of bp.
+     * {@code --metrics <file>} records the work of every query and writes it to the file when
+     * done, as JSON if the name ends in .json and in the Prometheus text format otherwise.
+     * {@code --factor-cache <entries>} bounds the factors cached between queries
+     * (default {@link BayesNet#FACTOR_CACHE_CAPACITY}, 0 for none).
+     * {@code --result-cache <answers>} keeps the answers of exact queries so repeats are not
+     * inferred again, and {@code --result-cache-file <file>} loads them from the file first and
+     * saves them to it at the end (with room for 100000 answers unless a size is given).
      * @param args command line arguments
      */
     public static void main(String[] args) {
-        BayesNet bayesNet = new BayesNet();
+        if (args.length > 0 && args[0].equals("--server")) {
+            QueryServer.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--stress")) {
+            ConcurrencyCheck.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--convert")) {
+            BinaryNet.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--generate")) {
+            NetGenerator.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+
+        // Split the trace options from the positional arguments
+        ArrayList<String> positional = new ArrayList<>();
+        Trace.Level level = null;
+        String traceFile = null;
+        boolean async = false;
+        boolean pruning = false;
+        EliminationPlanner.Strategy ordering = EliminationPlanner.Strategy.TOPOLOGICAL;
+        long samples = 100000;
+        long timeLimit = 0;
+        int chains = 0;
+        double damping = 0;
+        double tolerance = 1e-12;
+        int maxIterations = 100;
+        String metricsFile = null;
+        long factorCache = BayesNet.FACTOR_CACHE_CAPACITY;
+        int resultCache = 0;
+        String resultCacheFile = null;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if (args[i].equals("--trace")) {
+                    level = Trace.Level.valueOf(args[++i].toUpperCase());
+                } else if (args[i].equals("--trace-file")) {
+                    traceFile = args[++i];
+                } else if (args[i].equals("--async")) {
+                    async = true;
+                } else if (args[i].equals("--prune")) {
+                    pruning = true;
+                } else if (args[i].equals("--order")) {
+                    ordering = EliminationPlanner.Strategy.valueOf(args[++i].toUpperCase().replace('-', '_'));
+                } else if (args[i].equals("--samples")) {
+                    samples = Long.parseLong(args[++i]);
+                } else if (args[i].equals("--time-limit")) {
+                    timeLimit = Long.parseLong(args[++i]);
+                } else if (args[i].equals("--chains")) {
+                    chains = Integer.parseInt(args[++i]);
+                } else if (args[i].equals("--damping")) {
+                    damping = Double.parseDouble(args[++i]);
+                } else if (args[i].equals("--tolerance")) {
+                    tolerance = Double.parseDouble(args[++i]);
+                } else if (args[i].equals("--max-iterations")) {
+                    maxIterations = Integer.parseInt(args[++i]);
+                } else if (args[i].equals("--metrics")) {
+                    metricsFile = args[++i];
+                } else if (args[i].equals("--factor-cache")) {
+                    factorCache = Long.parseLong(args[++i]);
+                } else if (args[i].equals("--result-cache")) {
+                    resultCache = Integer.parseInt(args[++i]);
+                } else if (args[i].equals("--result-cache-file")) {
+                    resultCacheFile = args[++i];
+                } else {
+                    positional.add(args[i]);
+                }
+            }
+            if (samples < 1 || timeLimit < 0 || chains < 0) {
+                throw new IllegalArgumentException("Invalid sampling budget");
+            }
+            if (!(damping >= 0 && damping < 1) || tolerance < 0 || maxIterations < 0) {
+                throw new IllegalArgumentException("Invalid convergence control");
+            }
+            if (factorCache < 0 || resultCache < 0) {
+                throw new IllegalArgumentException("Invalid cache capacity");
+            }
+            if (resultCacheFile != null && resultCache == 0) {
+                resultCache = RESULT_CACHE_CAPACITY;
+            }
+        } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+            System.out.println("Invalid option, should be --trace <none|summary|step|full> or"
+                    + " --order <topological|min-degree|min-fill|weighted-min-fill|best>,"
+                    + " --samples <n>, --time-limit <ms>, --chains <n>, --damping <d>, --tolerance <t>"
+                    + ", --max-iterations <n>, --metrics <file>, --factor-cache <entries>, --result-cache <answers>"
+                    + " or --result-cache-file <file>");
+            System.exit(1);
+        }
 
-		if (args.length != 3) {
+        if (async && traceFile == null) {
+            System.out.println("--async only applies to a --trace-file");
+            System.exit(1);
+        }
+
+        boolean batch = positional.size() >= 3 && positional.get(2).equals("--batch");
+		if (batch ? positional.size() > 4 : positional.size() != 3) {
             System.out.println("Incorrect number of arguments.");
             System.exit(1);
         }
+        if (level == null) {
+            level = batch ? Trace.Level.NONE : Trace.Level.FULL;
+        }
         try {
-            Scanner in = new Scanner(new File(args[0]));
-			String mechanism = args[1];
-			String query = args[2];
-			
-			//Parser for query
-			Pattern queryvariable = Pattern.compile("P\\([A-Z]"); //Matches to find the query variable
-			Pattern queryevidence = Pattern.compile("[A-Z]=[t,f]"); //Matches to find the evidence variables and their values
-			Matcher qv = queryvariable.matcher(query);
-			Matcher qe = queryevidence.matcher(query);
-			qv.find();
-			Variable queryVar = new Variable(qv.group().charAt(2)); //Variable to be queried
-			TreeSet<Variable> evidence = new TreeSet<>(); //List containing the evidence of the query
-			while(qe.find())
-			{
-				String temp = qe.group();
-				if(temp.charAt(2)=='t') //True if evidence is true and to the evidence
-				{
-					evidence.add(new Variable(temp.charAt(0),true));
-				}
-				else
-				{
-					evidence.add(new Variable(temp.charAt(0),false));
-				}
-			}
-			
-			// Parser for input file
-			Pattern single = Pattern.compile("P\\([A-Z]\\)"); //Matches to find the variable of a node with no parents
-			Pattern multi = Pattern.compile("([A-Z]\\s)+\\|\\s[A-Z]"); //Matches to find the variables of a node with parents
-			Pattern truefalse = Pattern.compile("([t,f]\\s)+"); //Matches to determine the values of the ancestor nodes for a probability
-			Pattern probability = Pattern.compile("\\d*\\.\\d+"); //Matches the probability
-			while(in.hasNextLine()) //Runs until the end of the file
-			{
-				String givenLine = in.nextLine();
-				Matcher s = single.matcher(givenLine);
-				Matcher m = multi.matcher(givenLine);
-				if(s.find()) //True if the line is for a node with no parents
-				{
-					Matcher p = probability.matcher(givenLine);
-					p.find();
-					bayesNet.add(s.group().charAt(2),Double.parseDouble(p.group())); //Adds the variable to the bayes net with its probability
-				}
-				else if(m.find()) //True if the line is for a node with parents
-				{
-					String variables = m.group().replaceAll(" ","").replaceAll("\\|","");
-					in.nextLine();
-					int totalvariables = variables.length()-1; //Determines the total variables of the table (parents plus current node)
-					char[] leftVariables = variables.substring(0,totalvariables).toCharArray(); //Gets the variables which are the parents of the node
-					char rightVariable = variables.charAt(totalvariables); //Gets the variable of the node
-					int totalCombinations = (int)Math.pow(2,totalvariables); //Determines the number of combinations that are needed (2^parents)
-					double[] probabilitiesOfNode = new double[totalCombinations]; //Array containing the probabilities of a node
-					for(int x = 0; x < totalCombinations; x++) //Retrieves and sets all of the probabilities of a given node
-					{
-						givenLine = in.nextLine();
-						Matcher p = probability.matcher(givenLine);
-						Matcher tf = truefalse.matcher(givenLine);
-						p.find();
-						tf.find();
-						/*
-						 * The probability is placed into the array using a binary value which is calculated from the true and false values
-						 * For example, a node with two parents will have a probability where both of those parents are true
-						 * which maps to the binary value 11. That integer value is 3 so the probability gets put into the array's index of 3.
-						 */
-						probabilitiesOfNode[Integer.parseInt(tf.group().replaceAll("t ","1").replaceAll("f ","0"),2)] = Double.parseDouble(p.group());
-					}
-					bayesNet.add(leftVariables,rightVariable,probabilitiesOfNode); //Adds the variable to the bayes net with its probabilities and corresponding parent values
-				}
-
-			}
-
-			if (mechanism.equals("enum")) {
-                new Driver().enumerationAsk(queryVar, evidence, bayesNet);
-            } else if (mechanism.equals("elim")) {
-			    new Driver().eliminationAsk(queryVar, evidence, bayesNet);
-            } else {
-                System.out.println("Invalid mechanism, should be either \"enum\" or \"elim\"");
+            NetLoader loader = new NetLoader();
+            BayesNet bayesNet;
+            try {
+                bayesNet = loader.load(new File(positional.get(0)));
+            } catch (FileNotFoundException e) {
+                System.out.println("File not found.");
+                System.exit(1);
+                return;
+            } catch (IOException | IllegalArgumentException e) {
+                System.out.println("Invalid Bayes Net: " + e.getMessage());
+                System.exit(1);
+                return;
+            }
+            bayesNet.getFactorCache().setCapacity(factorCache);
+			String mechanism = positional.get(1);
+			if (!MECHANISMS.contains(mechanism) && !mechanism.equals("mpe")) {
+                System.out.println("Invalid mechanism, should be one of " + MECHANISMS + " or mpe");
+                return;
+            }
+
+            // Trace and batch answers share one buffer so their lines stay in order
+            PrintStream out = new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 1 << 16), false);
+            Metrics metrics = metricsFile != null ? new Metrics() : Metrics.NONE;
+            ResultCache results = resultCache > 0 ? new ResultCache(resultCache) : null;
+            if (resultCacheFile != null && new File(resultCacheFile).exists()) {
+                try {
+                    results.load(new File(resultCacheFile));
+                } catch (IOException e) {
+                    System.out.println("Invalid result cache: " + e.getMessage());
+                    System.exit(1);
+                }
+            }
+            String refusal = null;  // why the single query could not be answered
+            try (Trace trace = traceFile != null ? new Trace(level, traceFile, async) : new Trace(level, out)) {
+                Driver driver = new Driver(trace);
+                driver.setOrdering(ordering);
+                driver.setPruning(pruning);
+                driver.setSampling(samples, timeLimit, chains);
+                driver.setPropagation(damping, tolerance, maxIterations);
+                driver.setMetrics(metrics);
+                driver.setResultCache(results);
+                if (batch) {
+                    System.err.println("Loaded " + loader);
+                    BufferedReader in = positional.size() == 4
+                            ? new BufferedReader(new FileReader(positional.get(3)))
+                            : new BufferedReader(new InputStreamReader(System.in));
+                    driver.runBatch(mechanism, bayesNet, in, out);
+                    in.close();
+                    if (results != null) {
+                        System.err.println("Result cache: " + results);
+                    }
+                } else {
+                    // Parse before answering so a bad query is reported as one
+                    String query = positional.get(2);
+                    TreeSet<Variable> evidence = new TreeSet<>(); //List containing the evidence of the query
+                    MaxProduct maxProduct = null;
+                    Variable queryVar = null;
+                    try {
+                        if (mechanism.equals("mpe")) {
+                            maxProduct = MaxProduct.parse(bayesNet, query);
+                        } else if (query.startsWith("P(*")) {
+                            parseEvidence(query, evidence, bayesNet.compile());
+                        } else {
+                            queryVar = parseQuery(query, evidence, bayesNet.compile());
+                        }
+                    } catch (IllegalArgumentException e) {
+                        String message = e.getMessage();
+                        System.out.println(message.startsWith("Invalid query") ? message : "Invalid query: " + message);
+                        System.exit(1);
+                    }
+
+                    try {
+                        if (maxProduct != null) {
+                            driver.maxProductAsk(maxProduct);
+                        } else if (queryVar == null) {
+                            driver.allMarginalsAsk(mechanism, evidence, bayesNet);
+                        } else {
+                            driver.ask(mechanism, queryVar, evidence, bayesNet);
+                        }
+                    } catch (IllegalArgumentException e) {
+                        // Such as auto refusing a query no exact mechanism would answer in time
+                        refusal = e.getMessage();
+                    }
+                }
+            }
+            out.flush();
+            if (refusal != null) {
+                System.out.println(refusal);
+                System.exit(1);
+            }
+            if (resultCacheFile != null) {
+                try {
+                    results.save(new File(resultCacheFile));
+                } catch (IOException e) {
+                    System.err.println("Could not save result cache: " + e.getMessage());
+                    System.exit(1);
+                }
+            }
+            if (metricsFile != null) {
+                if (results != null) {
+                    metrics.count("bayesnet_result_cache_hits_total", results.getHits());
+                    metrics.count("bayesnet_result_cache_misses_total", results.getMisses());
+                    metrics.count("bayesnet_result_cache_evictions_total", results.getEvictions());
+                }
+                FactorCache cache = bayesNet.getFactorCache();
+                metrics.count("bayesnet_factor_cache_hits_total", cache.getHits());
+                metrics.count("bayesnet_factor_cache_misses_total", cache.getMisses());
+                metrics.count("bayesnet_factor_cache_evictions_total", cache.getEvictions());
+                try {
+                    metrics.write(new File(metricsFile));
+                } catch (IOException e) {
+                    System.err.println("Could not write metrics: " + e.getMessage());
+                    System.exit(1);
+                }
             }
         } catch (FileNotFoundException e) {
             System.out.println("File not found.");
             System.exit(1);
+        } catch (IOException e) {
+            System.out.println("Error reading queries: " + e.getMessage());
+            System.exit(1);
         }
     }
 }
@@ -0,0 +1,341 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.PriorityQueue;
+
+/**
+ * Plans the order hidden variables are eliminated in. Works on the interaction
+ * graph of a query (two variables are connected if they share a factor once the
+ * evidence is set) and predicts the cost of the order before any factor is built.
+ * The greedy strategies keep every variable's score in a heap and only rescore the
+ * variables an elimination can affect. Sizes and costs saturate at
+ * {@link Long#MAX_VALUE} instead of wrapping.
+ */
+public class EliminationPlanner {
+
+    /**
+     * How the next variable to eliminate is picked.
+     */
+    public enum Strategy {
+        TOPOLOGICAL,  // children before parents, largest factor first (the original order)
+        MIN_DEGREE,  // fewest neighbors
+        MIN_FILL,  // fewest new edges between its neighbors
+        WEIGHTED_MIN_FILL,  // smallest total size of the new edges
+        BEST  // whichever of the above predicts the least work
+    }
+
+    /**
+     * Elimination order of a query with its predicted cost.
+     */
+    public static class Plan {
+        private final Strategy strategy;  // strategy that made the order
+        private final int[] order;  // hidden nodes in elimination order
+        private final int[][] clusters;  // each eliminated node followed by its neighbors at that step
+        private final int inducedWidth;  // largest number of neighbors of an eliminated node
+        private final long largestFactor;  // entries of the largest factor built
+        private final long totalCost;  // entries of all the factors built
+
+        /**
+         * Creates a plan.
+         * @param strategy strategy that made the order
+         * @param order hidden nodes in elimination order
+         * @param clusters each eliminated node followed by its neighbors at that step
+         * @param inducedWidth largest number of neighbors of an eliminated node
+         * @param largestFactor entries of the largest factor built
+         * @param totalCost entries of all the factors built
+         */
+        Plan(Strategy strategy, int[] order, int[][] clusters, int inducedWidth, long largestFactor, long totalCost) {
+            this.strategy = strategy;
+            this.order = order;
+            this.clusters = clusters;
+            this.inducedWidth = inducedWidth;
+            this.largestFactor = largestFactor;
+            this.totalCost = totalCost;
+        }
+
+        /**
+         * Gets the strategy that made the order.
+         * @return the strategy
+         */
+        public Strategy getStrategy() {
+            return strategy;
+        }
+
+        /**
+         * Gets the hidden nodes in elimination order. The returned array must not be modified.
+         * @return node indices in elimination order
+         */
+        public int[] getOrder() {
+            return order;
+        }
+
+        /**
+         * Gets the cluster of every step: the node eliminated at that step followed by
+         * its neighbors, in node order. The returned arrays must not be modified.
+         * @return clusters in elimination order
+         */
+        public int[][] getClusters() {
+            return clusters;
+        }
+
+        /**
+         * Gets the induced width of the order.
+         * @return largest number of neighbors of an eliminated node
+         */
+        public int getInducedWidth() {
+            return inducedWidth;
+        }
+
+        /**
+         * Gets the predicted size of the largest factor.
+         * @return entries of the largest factor built
+         */
+        public long getLargestFactor() {
+            return largestFactor;
+        }
+
+        /**
+         * Gets the predicted total work.
+         * @return entries of all the factors built
+         */
+        public long getTotalCost() {
+            return totalCost;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: induced width %d, largest factor %s, total %s",
+                    strategy, inducedWidth, format(largestFactor), format(totalCost));
+        }
+
+        /**
+         * Formats a size or cost, marking one that saturated.
+         * @param entries number of factor entries
+         * @return the number, or "over 9.2e18" if it saturated
+         */
+        private static String format(long entries) {
+            return entries == Long.MAX_VALUE ? String.format("over %.2g", (double)Long.MAX_VALUE) : Long.toString(entries);
+        }
+    }
+
+    /**
+     * Plans the elimination of the hidden variables of a query.
+     * @param query query to plan
+     * @param strategy how to pick the next variable
+     * @return the plan
+     */
+    public static Plan plan(Query query, Strategy strategy) {
+        return plan(query, strategy, false);
+    }
+
+    /**
+     * Plans the elimination of the non-evidence variables of a query.
+     * @param query query to plan
+     * @param strategy how to pick the next variable
+     * @param all true to eliminate the query variable as well (at its turn)
+     * @return the plan
+     */
+    public static Plan plan(Query query, Strategy strategy, boolean all) {
+        if (strategy == Strategy.BEST) {
+            Plan best = null;
+            for (Strategy s : Strategy.values()) {
+                if (s != Strategy.BEST) {
+                    Plan p = plan(query, s, all);
+                    if (best == null || p.totalCost < best.totalCost) {
+                        best = p;
+                    }
+                }
+            }
+            return best;
+        }
+
+        CompiledNet net = query.getNet();
+        int n = net.size();
+        ArrayList<HashSet<Integer>> graph = interactionGraph(query);
+        int[] card = new int[n];  // number of values of each variable
+        for (int i = 0; i < n; i++) {
+            card[i] = net.getCardinality(i);
+        }
+
+        // Hidden variables are the ones to eliminate
+        boolean[] hidden = new boolean[n];
+        int numHidden = 0;
+        for (int i = 0; i < n; i++) {
+            hidden[i] = !query.isEvidence(i) && (all || i != query.getQueryNode());
+            if (hidden[i]) {
+                numHidden++;
+            }
+        }
+
+        // The original order is fixed up front, the others are picked greedily
+        int[] fixed = null;
+        long[] score = null;  // current score of each hidden variable
+        PriorityQueue<long[]> heap = null;  // {score, node}, lowest score then earliest node first; stale entries are skipped
+        if (strategy == Strategy.TOPOLOGICAL) {
+            boolean[] isEvidence = new boolean[n];
+            for (int i = 0; i < n; i++) {
+                isEvidence[i] = query.isEvidence(i);
+            }
+            int[] topo = net.eliminationOrder(isEvidence);
+            fixed = new int[numHidden];
+            int f = 0;
+            for (int i = topo.length-1; i >= 0; i--) {
+                if (hidden[topo[i]]) {
+                    fixed[f++] = topo[i];
+                }
+            }
+        } else {
+            score = new long[n];
+            heap = new PriorityQueue<>(Math.max(numHidden, 1),
+                    (a, b) -> a[0] != b[0] ? Long.compare(a[0], b[0]) : Long.compare(a[1], b[1]));
+            for (int v = 0; v < n; v++) {
+                if (hidden[v]) {
+                    score[v] = score(graph, v, card, strategy);
+                    heap.add(new long[] {score[v], v});
+                }
+            }
+        }
+
+        int[] order = new int[numHidden];
+        int[][] clusters = new int[numHidden][];
+        int inducedWidth = 0;
+        long largestFactor = 0;
+        long totalCost = 0;
+        for (int step = 0; step < numHidden; step++) {
+            int next;
+            if (fixed != null) {
+                next = fixed[step];
+            } else {
+                long[] top = heap.poll();
+                while (!hidden[(int)top[1]] || score[(int)top[1]] != top[0]) {
+                    top = heap.poll();
+                }
+                next = (int)top[1];
+            }
+            order[step] = next;
+            hidden[next] = false;
+
+            // The product over next and its neighbors is the largest factor of the step
+            HashSet<Integer> neighbors = graph.get(next);
+            int[] cluster = new int[neighbors.size()+1];
+            int c = 1;
+            for (int v : neighbors) {
+                cluster[c++] = v;
+            }
+            Arrays.sort(cluster, 1, cluster.length);
+            cluster[0] = next;
+            clusters[step] = cluster;
+            long size = card[next];
+            for (int i = 1; i < cluster.length; i++) {
+                size = times(size, card[cluster[i]]);
+            }
+            inducedWidth = Math.max(inducedWidth, neighbors.size());
+            largestFactor = Math.max(largestFactor, size);
+            totalCost = totalCost > Long.MAX_VALUE - size ? Long.MAX_VALUE : totalCost + size;
+
+            // Connect the neighbors and remove next from the graph
+            for (int i = 1; i < cluster.length; i++) {
+                HashSet<Integer> adjacent = graph.get(cluster[i]);
+                adjacent.remove(next);
+                for (int j = 1; j < cluster.length; j++) {
+                    if (j != i) {
+                        adjacent.add(cluster[j]);
+                    }
+                }
+            }
+            graph.set(next, new HashSet<>());
+
+            if (heap != null) {
+                // Degrees only change for the neighbors; fill also changes for their neighbors,
+                // since the new edges are between the neighbors
+                HashSet<Integer> affected = new HashSet<>();
+                for (int i = 1; i < cluster.length; i++) {
+                    affected.add(cluster[i]);
+                    if (strategy != Strategy.MIN_DEGREE) {
+                        affected.addAll(graph.get(cluster[i]));
+                    }
+                }
+                for (int v : affected) {
+                    if (hidden[v]) {
+                        long s2 = score(graph, v, card, strategy);
+                        if (s2 != score[v]) {
+                            score[v] = s2;
+                            heap.add(new long[] {s2, v});
+                        }
+                    }
+                }
+            }
+        }
+
+        return new Plan(strategy, order, clusters, inducedWidth, largestFactor, totalCost);
+    }
+
+    /**
+     * Multiplies factor sizes, saturating instead of overflowing.
+     * @param a a size
+     * @param b another size
+     * @return the product, or {@link Long#MAX_VALUE} if it does not fit
+     */
+    static long times(long a, long b) {
+        return b != 0 && a > Long.MAX_VALUE / b ? Long.MAX_VALUE : a * b;
+    }
+
+    /**
+     * Builds the interaction graph of a query: non-evidence variables that appear in
+     * the same CPT are connected.
+     * @param query query to build the graph for
+     * @return neighbors of every node (empty for evidence)
+     */
+    static ArrayList<HashSet<Integer>> interactionGraph(Query query) {
+        CompiledNet net = query.getNet();
+        ArrayList<HashSet<Integer>> graph = new ArrayList<>(net.size());
+        for (int i = 0; i < net.size(); i++) {
+            graph.add(new HashSet<>());
+        }
+        for (int i = 0; i < net.size(); i++) {
+            int[] parents = net.getParents(i);
+            for (int a = -1; a < parents.length; a++) {
+                int u = a < 0 ? i : parents[a];
+                for (int b = a+1; b < parents.length; b++) {
+                    int v = parents[b];
+                    if (!query.isEvidence(u) && !query.isEvidence(v)) {
+                        graph.get(u).add(v);
+                        graph.get(v).add(u);
+                    }
+                }
+            }
+        }
+        return graph;
+    }
+
+    /**
+     * Scores a variable for the greedy strategies; the lowest score is eliminated next.
+     * @param graph current interaction graph
+     * @param v variable to score
+     * @param card number of values of each variable
+     * @param strategy how to score the variables
+     * @return number of neighbors, or the number (or total size) of the missing edges between them
+     */
+    private static long score(ArrayList<HashSet<Integer>> graph, int v, int[] card, Strategy strategy) {
+        HashSet<Integer> neighbors = graph.get(v);
+        if (strategy == Strategy.MIN_DEGREE) {
+            return neighbors.size();
+        }
+        // Count (or weigh) the pairs of neighbors that are not connected yet
+        int[] adjacent = new int[neighbors.size()];
+        int k = 0;
+        for (int a : neighbors) {
+            adjacent[k++] = a;
+        }
+        long score = 0;
+        for (int i = 0; i < adjacent.length; i++) {
+            HashSet<Integer> around = graph.get(adjacent[i]);
+            for (int j = i+1; j < adjacent.length; j++) {
+                if (!around.contains(adjacent[j])) {
+                    score += strategy == Strategy.MIN_FILL ? 1 : (long)card[adjacent[i]] * card[adjacent[j]];
+                }
+            }
+        }
+        return score;
+    }
+}
@@ -1,85 +1,234 @@
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.TreeSet;
 
 /**
- * Object to represent a factor.
+ * Object to represent a factor. Factors are immutable, so they can be shared
+ * between threads; only the names and states of their variables are used. The
+ * probabilities are indexed in mixed radix over the values of the variables, the
+ * last variable being the lowest digit.
  */
 public class Factor {
 
-    private Variable[] vars;  // Variables in the factor
-    private double[] probabilities;  // Probabilities for the truth assignments
+    private final Variable[] vars;  // Variables in the factor
+    private final int[] card;  // Number of states of each variable
+    private final double[] probabilities;  // Probabilities for the assignments
 
     /**
      * Creates a new factor.
      * @param vars variables in the factor
-     * @param probs probabilities for the truth assignments
+     * @param probs probabilities for the assignments
      */
     public Factor(Variable[] vars, double[] probs) {
         this.vars = vars;
+        card = new int[vars.length];
+        for (int i = 0; i < vars.length; i++) {
+            card[i] = vars[i].getCardinality();
+        }
         probabilities = probs;
     }
 
 	/**
      * Sums the probabilities of a Factor which involve similar Variable states.
      * @param toMerge variable of relevant states
+     * @return factor without {@code toMerge}
      */
-    public void sumOut(Variable toMerge) {
-        // Search for the toMerge variable in the factor
-        // If it's not in the factor, then there is nothing to sum out
-        int index = -1;
+    public Factor sumOut(Variable toMerge) {
+        return sumOut(Collections.singleton(toMerge));
+    }
+
+    /**
+     * Sums out several variables at once in a single pass over the probabilities.
+     * Variables not in the factor are ignored.
+     * @param toMerge variables of relevant states
+     * @return factor without the variables in {@code toMerge}
+     */
+    public Factor sumOut(Collection<Variable> toMerge) {
+        // Find which variables stay in the factor
+        // If none of toMerge is in the factor, then there is nothing to sum out
+        boolean[] keep = new boolean[vars.length];
+        int kept = 0;
         for (int i = 0; i < vars.length; i++) {
-            if (vars[i].getName() == toMerge.getName()) {
-                index = i;
-                break;
+            keep[i] = !toMerge.contains(vars[i]);
+            if (keep[i]) {
+                kept++;
             }
         }
-        if (index == -1) {
-            return;
+        if (kept == vars.length) {
+            return this;
         }
 
-        Variable[] newVars = new Variable[vars.length-1]; // Array containing the Variables which are relevant
-        double[] newProbs = new double[probabilities.length >> 1]; // Array containing the resulting probabilities
+        Variable[] newVars = new Variable[kept]; // Array containing the Variables which are relevant
 
-        // Copy the vars over minus the variable we are summing over
+        // Copy the vars over minus the variables we are summing over
+        int n = 0;
+        int length = 1;
         for (int i = 0; i < vars.length; i++) {
-            if (i < index) {
-                newVars[i] = vars[i];
-            } else if (i > index) {
-                newVars[i-1] = vars[i];
+            if (keep[i]) {
+                newVars[n++] = vars[i];
+                length *= card[i];
             }
         }
+        double[] newProbs = new double[length]; // Array containing the resulting probabilities
 
         // Generate the new probabilities
-        for (int i = 0; i < probabilities.length; i++) {
-            int pi = 0; // new probability index
-            int n = i;
-
-            // Create the new probability index (reversed)
-            for (int e = vars.length-1; e >= 0; e--) {
-                if (e == index) {
-                    n >>= 1;
-                    continue;
+        marginalize(probabilities, card, keep, newProbs);
+
+        // Return the factor with the variables removed
+        return new Factor(newVars, newProbs);
+    }
+
+    /**
+     * Marginalization kernel. Sums the rows of {@code in} that only differ in the
+     * variables that are not kept and writes the result to the front of {@code out},
+     * so a caller can reuse one buffer across a chain of eliminations.
+     * @param in probabilities to sum over, indexed in mixed radix over {@code card}
+     * @param card number of states of each variable of {@code in}
+     * @param keep true for each variable that stays in the result
+     * @param out output buffer, at least as long as the result and distinct from {@code in}
+     * @return number of probabilities written to {@code out}
+     */
+    static int marginalize(double[] in, int[] card, boolean[] keep, double[] out) {
+        // Stride of every variable in the output (0 if summed out)
+        int numVars = card.length;
+        int[] outStride = new int[numVars];
+        int stride = 1;
+        int summed = -1;  // index of the summed variable, if there is only one
+        int numSummed = 0;
+        int block = 1;  // rows between two values of the summed variable
+        int inStride = 1;  // rows between two values of the current variable
+        for (int v = numVars-1; v >= 0; v--) {
+            if (keep[v]) {
+                outStride[v] = stride;
+                stride *= card[v];
+            } else {
+                summed = v;
+                numSummed++;
+                block = inStride;
+            }
+            inStride *= card[v];
+        }
+        int length = stride;  // product of the kept cardinalities
+
+        if (numSummed == 1) {
+            // A single variable splits the table into blocks of [value 0 rows, value 1 rows, ...]
+            int k = card[summed];
+            int o = 0;
+            for (int i = 0; i < in.length; i += block * k) {
+                for (int e = 0; e < block; e++) {
+                    double sum = in[i+e];
+                    for (int j = 1; j < k; j++) {
+                        sum += in[i+e+j*block];
+                    }
+                    out[o++] = sum;
+                }
+            }
+            return length;
+        }
+
+        // General case: one pass over the input, tracking the output row with an odometer
+        Arrays.fill(out, 0, length, 0);
+        int[] digit = new int[numVars];
+        int o = 0;
+        for (int i = 0; i < in.length; i++) {
+            out[o] += in[i];
+            for (int v = numVars-1; v >= 0; v--) {
+                if (++digit[v] < card[v]) {
+                    o += outStride[v];
+                    break;
                 }
-                pi <<= 1;
-                pi |= n%2;
-                n >>= 1;
+                digit[v] = 0;
+                o -= outStride[v] * (card[v]-1);
             }
+        }
+        return length;
+    }
+
+    /**
+     * Maximizes a variable out of the factor: each row of the result is the largest
+     * of the rows that only differ in that variable. Max-product elimination uses it
+     * in place of {@link #sumOut(Variable)}.
+     * @param toMax variable to maximize over
+     * @return factor without {@code toMax}, or this factor if it does not have it
+     */
+    public Factor maxOut(Variable toMax) {
+        int index = -1;
+        for (int i = 0; i < vars.length; i++) {
+            if (vars[i].equals(toMax)) {
+                index = i;
+            }
+        }
+        if (index < 0) {
+            return this;
+        }
+
+        Variable[] newVars = new Variable[vars.length-1];
+        int n = 0;
+        for (int i = 0; i < vars.length; i++) {
+            if (i != index) {
+                newVars[n++] = vars[i];
+            }
+        }
+        double[] newProbs = new double[probabilities.length / card[index]];
+        maximize(probabilities, strides(card)[index], card[index], newProbs);
+        return new Factor(newVars, newProbs);
+    }
 
-            // Unreverse the new probability index
-            n = pi;
-            pi = 0;
-            for (int e = 0; e < vars.length-1; e++) {
-                pi <<= 1;
-                pi |= n%2;
-                n >>= 1;
+    /**
+     * Maximization kernel, the same walk as the single variable case of
+     * {@link #marginalize} with the sum replaced by a maximum.
+     * @param in probabilities to maximize over
+     * @param block rows between two values of the maximized variable
+     * @param k number of states of the maximized variable
+     * @param out output probabilities, of length {@code in.length / k}
+     */
+    static void maximize(double[] in, int block, int k, double[] out) {
+        int o = 0;
+        for (int i = 0; i < in.length; i += block * k) {
+            for (int e = 0; e < block; e++) {
+                double max = in[i+e];
+                for (int j = 1; j < k; j++) {
+                    max = Math.max(max, in[i+e+j*block]);
+                }
+                out[o++] = max;
             }
+        }
+    }
 
-            // Add one of the old probabilities to the new probability
-            newProbs[pi] += probabilities[i];
+    /**
+     * Finds the value of a variable with the largest probability once every other
+     * variable of the factor is fixed. Traces back the values of max-product elimination.
+     * @param var variable to pick a value for
+     * @param given values of the other variables of the factor (more are ignored)
+     * @return the value of {@code var} with the largest probability, the first one on ties
+     */
+    public int argMax(Variable var, TreeSet<Variable> given) {
+        int[] stride = strides(card);
+        int index = -1;
+        int row = 0;  // row with var at value 0
+        for (int i = 0; i < vars.length; i++) {
+            if (vars[i].equals(var)) {
+                index = i;
+                continue;
+            }
+            Variable v = given.ceiling(vars[i]);
+            if (v == null || !v.equals(vars[i])) {
+                throw new IllegalArgumentException(vars[i].getName() + " has no value");
+            }
+            row += v.getValue() * stride[i];
+        }
+        if (index < 0) {
+            throw new IllegalArgumentException(var.getName() + " is not in the factor");
         }
 
-        // Apply variable removal
-        vars = newVars;
-        probabilities = newProbs;
+        int best = 0;
+        for (int value = 1; value < card[index]; value++) {
+            if (probabilities[row + value*stride[index]] > probabilities[row + best*stride[index]]) {
+                best = value;
+            }
+        }
+        return best;
     }
 
 	/**
@@ -112,87 +261,157 @@ public class Factor {
             return null;
         }
 
-        // Find the variables of the new factor that will be generated
-        TreeSet<Variable> merge = new TreeSet<>();
-        for (Variable v : vars) {
-            merge.add(v);
-        }
-        for (Variable v : other.vars) {
-            merge.add(v);
+        // Merge the (alphabetically sorted) variable lists of both factors, recording the
+        // stride each output variable has in this factor and in the other factor. A stride
+        // of 0 means the factor does not mention that variable.
+        Variable[] merged = new Variable[vars.length + other.vars.length];
+        int[] strideA = new int[merged.length];
+        int[] strideB = new int[merged.length];
+        int[] mergedCard = new int[merged.length];
+        int[] ownStrideA = strides(card);
+        int[] ownStrideB = strides(other.card);
+        int a = 0;
+        int b = 0;
+        int size = 0;
+        int length = 1;
+        while (a < vars.length || b < other.vars.length) {
+            int cmp;
+            if (a == vars.length) {
+                cmp = 1;
+            } else if (b == other.vars.length) {
+                cmp = -1;
+            } else {
+                cmp = vars[a].compareTo(other.vars[b]);
+            }
+            merged[size] = cmp <= 0 ? vars[a] : other.vars[b];
+            mergedCard[size] = cmp <= 0 ? card[a] : other.card[b];
+            strideA[size] = cmp <= 0 ? ownStrideA[a++] : 0;
+            strideB[size] = cmp >= 0 ? ownStrideB[b++] : 0;
+            length *= mergedCard[size];
+            size++;
         }
 
-        Variable[] newVars = new Variable[merge.size()];  // New variables
-        double[] probs = new double[1 << merge.size()];  // New probabilities
-        newVars = merge.toArray(newVars);
+        Variable[] newVars = new Variable[size];  // New variables
+        double[] probs = new double[length];  // New probabilities
+        System.arraycopy(merged, 0, newVars, 0, size);
 
         // Generate the new probabilities
-        for (int i = 0; i < probabilities.length; i++) {
-            for (int e = 0; e < other.probabilities.length; e++) {
-                // Set this factor's variables
-                int n = i;
-                for (int w = vars.length-1; w >= 0; w--) {
-                    vars[w].setValue(n % 2 == 1);
-                    n >>= 1;
-                }
+        product(probabilities, strideA, other.probabilities, strideB, Arrays.copyOf(mergedCard, size), probs);
 
-                // Set other factor's variables
-                n = e;
-                for (int w = other.vars.length-1; w >= 0; w--) {
-                    other.vars[w].setValue(n % 2 == 1);
-                    n >>= 1;
-                }
+        // Return the generated factor
+        return new Factor(newVars, probs);
+    }
 
-                // Generate probability if common variables match their values
-                if (matches(vars, other.vars)) {
-                    // Get the index of the probability
-                    int index = 0;
-                    for (Variable v1 : merge) {
-                        index <<= 1;
-                        for (Variable v2 : vars) {
-                            if (v1.equals(v2)) {
-                                v1.setValue(v2.getValue());
-                                break;
-                            }
-                        }
-                        for (Variable v2 : other.vars) {
-                            if (v1.equals(v2)) {
-                                v1.setValue(v2.getValue());
-                                break;
-                            }
-                        }
-                        index |= v1.getValue() ? 1 : 0;
-                    }
+    /**
+     * Gets the stride of each variable of a table in mixed radix.
+     * @param card number of states of each variable
+     * @return rows between two values of each variable (1 for the last)
+     */
+    static int[] strides(int[] card) {
+        int[] stride = new int[card.length];
+        int s = 1;
+        for (int v = card.length-1; v >= 0; v--) {
+            stride[v] = s;
+            s *= card[v];
+        }
+        return stride;
+    }
+
+    /**
+     * Stride-based product kernel. Walks the output table once in index order, keeping
+     * the matching row of each input factor up to date with an odometer over the output
+     * variables instead of decoding every index.
+     * @param a probabilities of the first factor
+     * @param strideA stride of each output variable in {@code a} (0 if absent)
+     * @param b probabilities of the second factor
+     * @param strideB stride of each output variable in {@code b} (0 if absent)
+     * @param card number of states of each output variable
+     * @param out output probabilities, of length the product of {@code card}
+     */
+    static void product(double[] a, int[] strideA, double[] b, int[] strideB, int[] card, double[] out) {
+        int numVars = card.length;
+        int[] digit = new int[numVars];  // value of each output variable
+        int ia = 0;  // row in a
+        int ib = 0;  // row in b
+        for (int i = 0; i < out.length; i++) {
+            out[i] = a[ia] * b[ib];
 
-                    // Create the probability
-                    probs[index] = probabilities[i] * other.probabilities[e];
+            // Advance the odometer; the last variable is the lowest digit
+            for (int v = numVars-1; v >= 0; v--) {
+                if (++digit[v] < card[v]) {
+                    // No carry
+                    ia += strideA[v];
+                    ib += strideB[v];
+                    break;
                 }
+                // Digit wraps to 0, carry into the next variable
+                digit[v] = 0;
+                ia -= strideA[v] * (card[v]-1);
+                ib -= strideB[v] * (card[v]-1);
             }
         }
-
-        // Return the generated factor
-        return new Factor(newVars, probs);
     }
 
-	/**
-     * Checks if values of shared Variables are the same.
-     * @param one first set of variables
-     * @param two second set of variables
-	 * @return true if they are the same
+    /**
+     * Fused product and sum-out kernel. Sums the last variable out of the product of
+     * several tables without building the product: each output row multiplies the
+     * matching rows of the inputs for every value of that variable and adds them up.
+     * The input rows are kept up to date with the same odometer as {@link #product}.
+     * @param tables probabilities of the input factors
+     * @param strides stride of each variable of the product in each input (0 if absent)
+     * @param card number of states of each variable of the product, the last one is summed out
+     * @param out output probabilities, of length the product of {@code card} but the last
      */
-    private boolean matches(Variable[] one, Variable[] two) {
-        for (Variable v1 : one) {
-            boolean match = true;
-            for (Variable v2 : two) {
-                if (v1.equals(v2) && v1.getValue() != v2.getValue()) {
-                    match = false;
+    static void productSumOut(double[][] tables, int[][] strides, int[] card, double[] out) {
+        int numVars = card.length;
+        int numTables = tables.length;
+        int summedCard = card[numVars-1];
+        int[] rows = new int[numTables];  // row of each table with the summed variable 0
+        int[] last = new int[numTables];  // stride of the summed variable in each table
+        for (int k = 0; k < numTables; k++) {
+            last[k] = strides[k][numVars-1];
+        }
+        int outVars = numVars-1;
+        int[] digit = new int[outVars];
+        for (int i = 0; i < out.length; i++) {
+            double sum = 0;
+            for (int j = 0; j < summedCard; j++) {
+                double product = 1;
+                for (int k = 0; k < numTables; k++) {
+                    product *= tables[k][rows[k] + j * last[k]];
+                }
+                sum += product;
+            }
+            out[i] = sum;
+
+            // Advance the odometer over the output variables
+            for (int v = outVars-1; v >= 0; v--) {
+                if (++digit[v] < card[v]) {
+                    for (int k = 0; k < numTables; k++) {
+                        rows[k] += strides[k][v];
+                    }
                     break;
                 }
+                digit[v] = 0;
+                for (int k = 0; k < numTables; k++) {
+                    rows[k] -= strides[k][v] * (card[v]-1);
+                }
             }
-            if (!match) {
-                return false;
+        }
+    }
+
+    /**
+     * Checks if a variable is in the factor.
+     * @param var variable to look for
+     * @return true if the factor has {@code var}
+     */
+    public boolean contains(Variable var) {
+        for (Variable v : vars) {
+            if (v.equals(var)) {
+                return true;
             }
         }
-        return true;
+        return false;
     }
 
 	/**
@@ -204,20 +423,26 @@ public class Factor {
         return probabilities[index];
     }
 
+    /**
+     * Gets the number of entries of the factor.
+     * @return product of the numbers of states of its variables
+     */
+    public int size() {
+        return probabilities.length;
+    }
+
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder();
+        int[] stride = strides(card);
         for (int i = 0; i < probabilities.length; i++) {
-            int n = i;
-            for (int e = vars.length-1; e >= 0; e--) {
-                vars[e].setValue(n%2 == 1);
-                n >>= 1;
-            }
             for (int e = 0; e < vars.length; e++) {
                 if (e != 0) {
                     sb.append(" ");
                 }
-                sb.append(String.format("%c=%c", vars[e].getName(), vars[e].getValue() ? 't' : 'f'));
+                // Value of the variable is its digit of the index (last variable is the lowest digit)
+                int value = i / stride[e] % card[e];
+                sb.append(vars[e].getName()).append('=').append(vars[e].getStates()[value]);
             }
             sb.append(":  ").append(probabilities[i]).append("\n");
         }
@@ -0,0 +1,222 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded cache of the factors {@link BayesNet#makeFactor} builds. A factor only
+ * depends on its variable and on the evidence values of the variable's family, so
+ * that is the key, and queries that repeat an evidence pattern reuse the factor
+ * instead of building it again. The capacity is in factor entries; when it is
+ * exceeded the least recently used factors are evicted until the rest fit in 7/8
+ * of it. Factors are never modified after they are made, so one cached factor can
+ * be handed to many queries and threads at once. Lookups take no lock: the factors
+ * are in a concurrent map and a lookup only stamps the factor it found, so threads
+ * sharing a network do not queue on the cache; only eviction is done by one thread
+ * at a time.
+ */
+public class FactorCache {
+
+    /**
+     * Variable and family evidence a factor was made for.
+     */
+    private static final class Key {
+        final int[] values;  // node index, then the evidence value of each family member (-1 if not evidence)
+        final int hash;  // hash of values
+
+        /**
+         * Creates a key.
+         * @param values node index, then the evidence value of each family member
+         */
+        Key(int[] values) {
+            this.values = values;
+            hash = Arrays.hashCode(values);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof Key && Arrays.equals(values, ((Key)obj).values);
+        }
+    }
+
+    /**
+     * Cached factor and when it was last used.
+     */
+    private static final class Entry {
+        final Factor factor;  // the cached factor
+        volatile long used;  // value of the clock when it was last looked up or put
+
+        /**
+         * Creates an entry.
+         * @param factor the cached factor
+         * @param used value of the clock now
+         */
+        Entry(Factor factor, long used) {
+            this.factor = factor;
+            this.used = used;
+        }
+    }
+
+    private final ConcurrentHashMap<Key, Entry> factors = new ConcurrentHashMap<>();  // cached factors
+    private final AtomicLong clock = new AtomicLong();  // ticks once per put, so lookups only read it
+    private final AtomicLong entries = new AtomicLong();  // entries of the cached factors together
+    private final LongAdder hits = new LongAdder();  // lookups that found a factor
+    private final LongAdder misses = new LongAdder();  // lookups that did not
+    private final LongAdder evictions = new LongAdder();  // factors evicted to make room
+    private final Object evicting = new Object();  // held by the one thread evicting at a time
+    private volatile long capacity;  // most entries the cached factors may have together, 0 to cache nothing
+
+    /**
+     * Creates an empty cache.
+     * @param capacity most entries the cached factors may have together, 0 to cache nothing
+     */
+    public FactorCache(long capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Looks up a factor and counts the hit or miss.
+     * @param key node index, then the evidence value of each family member (-1 if not evidence)
+     * @return the cached factor, null if there is none
+     */
+    Factor get(int[] key) {
+        if (capacity == 0) {
+            return null;
+        }
+        Entry entry = factors.get(new Key(key));
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        long now = clock.get();
+        if (entry.used != now) {
+            // Only written when it changes, so threads sharing a hot factor do not keep writing its line
+            entry.used = now;
+        }
+        return entry.factor;
+    }
+
+    /**
+     * Caches a factor, evicting the least recently used ones if it does not fit.
+     * Factors larger than the whole cache are not kept.
+     * @param key node index, then the evidence value of each family member (-1 if not evidence)
+     * @param factor the factor made for the key
+     */
+    void put(int[] key, Factor factor) {
+        if (factor.size() > capacity) {
+            return;
+        }
+        Entry old = factors.put(new Key(key), new Entry(factor, clock.incrementAndGet()));
+        if (entries.addAndGet(factor.size() - (old != null ? old.factor.size() : 0)) > capacity) {
+            evict();
+        }
+    }
+
+    /**
+     * Evicts the least recently used factors until they take up at most 7/8 of the
+     * capacity. The recency is approximate: factors looked up between the same two
+     * puts count as used at once. Evicting past the capacity means the sort is paid
+     * for once per many puts, not once per put.
+     */
+    private void evict() {
+        synchronized (evicting) {
+            long target = capacity - capacity / 8;
+            if (entries.get() <= capacity) {
+                return;
+            }
+            ArrayList<Map.Entry<Key, Entry>> byUse = new ArrayList<>(factors.entrySet());
+            byUse.sort((a, b) -> Long.compare(a.getValue().used, b.getValue().used));
+            for (Map.Entry<Key, Entry> e : byUse) {
+                if (entries.get() <= target) {
+                    break;
+                }
+                if (factors.remove(e.getKey(), e.getValue())) {
+                    entries.addAndGet(-e.getValue().factor.size());
+                    evictions.increment();
+                }
+            }
+        }
+    }
+
+    /**
+     * Changes the capacity, evicting factors if they no longer fit.
+     * @param capacity most entries the cached factors may have together, 0 to cache nothing
+     */
+    public void setCapacity(long capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("Negative factor cache capacity");
+        }
+        this.capacity = capacity;
+        if (entries.get() > capacity) {
+            evict();
+        }
+    }
+
+    /**
+     * Removes every factor, keeping the statistics.
+     */
+    public void clear() {
+        for (Map.Entry<Key, Entry> e : factors.entrySet()) {
+            if (factors.remove(e.getKey(), e.getValue())) {
+                entries.addAndGet(-e.getValue().factor.size());
+            }
+        }
+    }
+
+    /**
+     * Gets the number of lookups that found a factor.
+     * @return the hits
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * Gets the number of lookups that did not find a factor.
+     * @return the misses
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * Gets the number of factors evicted to make room.
+     * @return the evictions
+     */
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * Gets the number of cached factors.
+     * @return the number of factors
+     */
+    public int size() {
+        return factors.size();
+    }
+
+    /**
+     * Gets the entries of the cached factors together.
+     * @return the number of entries
+     */
+    public long getEntries() {
+        return entries.get();
+    }
+
+    @Override
+    public String toString() {
+        long hits = getHits();
+        long misses = getMisses();
+        long lookups = hits + misses;
+        return String.format("%d hits, %d misses (%.1f%% hit), %d evictions, %d factors with %d entries cached",
+                hits, misses, lookups > 0 ? 100.0 * hits / lookups : 0.0, getEvictions(), factors.size(), getEntries());
+    }
+}
@@ -0,0 +1,264 @@
+import java.util.Arrays;
+
+/**
+ * Junction tree (clique tree) over the CPTs of a Bayes Net with evidence set.
+ * The tree is calibrated once with Hugin message passing (one collect pass and
+ * one distribute pass), after which the posterior of every variable is read off
+ * its cluster.
+ */
+public class JunctionTree {
+
+    private final Query query;  // evidence the tree is calibrated for
+    private final int[][] vars;  // variables of each cluster, in node order
+    private final int[][] card;  // number of states of each cluster variable
+    private final double[][] potentials;  // calibrated potential of each cluster
+    private final int[] clusterOf;  // cluster that eliminated each node, -1 for evidence
+
+    /**
+     * Builds and calibrates a junction tree for the evidence of a query.
+     * @param query query whose evidence is used (the query variable does not matter)
+     */
+    public JunctionTree(Query query) {
+        this.query = query;
+        CompiledNet net = query.getNet();
+        int n = net.size();
+
+        // Clusters come from a min-fill elimination of every non-evidence variable
+        EliminationPlanner.Plan plan = EliminationPlanner.plan(query, EliminationPlanner.Strategy.MIN_FILL, true);
+        int[] order = plan.getOrder();
+        int m = order.length;
+        clusterOf = new int[n];
+        Arrays.fill(clusterOf, -1);
+        for (int k = 0; k < m; k++) {
+            clusterOf[order[k]] = k;
+        }
+        vars = new int[m][];
+        card = new int[m][];
+        potentials = new double[m][];
+        for (int k = 0; k < m; k++) {
+            vars[k] = plan.getClusters()[k].clone();
+            Arrays.sort(vars[k]);
+            card[k] = net.getCardinalities(vars[k]);
+            potentials[k] = new double[net.getTableSize(vars[k])];
+            Arrays.fill(potentials[k], 1);
+        }
+
+        // Each cluster sends to the cluster of the first of its other variables to be
+        // eliminated, which contains all of them (-1 for the root of a tree)
+        int[] parent = new int[m];
+        int[][] sepVars = new int[m][];
+        for (int k = 0; k < m; k++) {
+            parent[k] = -1;
+            sepVars[k] = new int[vars[k].length-1];
+            int s = 0;
+            for (int v : vars[k]) {
+                if (v != order[k]) {
+                    sepVars[k][s++] = v;
+                    if (parent[k] < 0 || clusterOf[v] < parent[k]) {
+                        parent[k] = clusterOf[v];
+                    }
+                }
+            }
+        }
+
+        // Multiply each CPT into the cluster of the first of its variables to be eliminated
+        int[] assignment = query.newAssignment();
+        for (int i = 0; i < n; i++) {
+            int[] family = family(query, i);
+            if (family.length == 0) {
+                continue;  // only evidence, a constant
+            }
+            int home = clusterOf[family[0]];
+            for (int v : family) {
+                home = Math.min(home, clusterOf[v]);
+            }
+            multiplyIn(potentials[home], vars[home], card[home], cptFactor(net, i, family, assignment), family,
+                    net.getCardinalities(family));
+        }
+
+        // Collect towards the roots; a parent always comes after its children
+        double[][] separators = new double[m][];
+        int[][] sepCard = new int[m][];
+        for (int k = 0; k < m; k++) {
+            if (parent[k] >= 0) {
+                sepCard[k] = net.getCardinalities(sepVars[k]);
+                separators[k] = marginal(potentials[k], vars[k], card[k], sepVars[k]);
+                multiplyIn(potentials[parent[k]], vars[parent[k]], card[parent[k]], separators[k], sepVars[k], sepCard[k]);
+            }
+        }
+
+        // Distribute back out from the roots
+        for (int k = m-1; k >= 0; k--) {
+            if (parent[k] >= 0) {
+                double[] message = marginal(potentials[parent[k]], vars[parent[k]], card[parent[k]], sepVars[k]);
+                for (int s = 0; s < message.length; s++) {
+                    message[s] = separators[k][s] == 0 ? 0 : message[s] / separators[k][s];
+                }
+                multiplyIn(potentials[k], vars[k], card[k], message, sepVars[k], sepCard[k]);
+            }
+        }
+    }
+
+    /**
+     * Gets the posterior of a variable.
+     * @param node node index
+     * @return normalized probability of each value of the variable
+     */
+    public double[] getMarginal(int node) {
+        if (query.isEvidence(node)) {
+            return evidenceMarginal(query, node);
+        }
+        int k = clusterOf[node];
+        double[] marginal = marginal(potentials[k], vars[k], card[k], new int[]{node});
+        double total = 0;
+        for (double p : marginal) {
+            total += p;
+        }
+        for (int v = 0; v < marginal.length; v++) {
+            marginal[v] /= total;
+        }
+        return marginal;
+    }
+
+    /**
+     * Gets the posterior of an evidence variable, certain of its observed value.
+     * @param query query whose evidence is set
+     * @param node evidence node
+     * @return probability of each value of the variable
+     */
+    static double[] evidenceMarginal(Query query, int node) {
+        double[] marginal = new double[query.getNet().getCardinality(node)];
+        marginal[query.getEvidence(node)] = 1;
+        return marginal;
+    }
+
+    /**
+     * Gets the posterior of every variable.
+     * @return normalized probability of each value of each variable
+     */
+    public double[][] getMarginals() {
+        double[][] marginals = new double[clusterOf.length][];
+        for (int i = 0; i < marginals.length; i++) {
+            marginals[i] = getMarginal(i);
+        }
+        return marginals;
+    }
+
+    /**
+     * Gets the non-evidence variables of a node's CPT.
+     * @param query query whose evidence is set
+     * @param node node index
+     * @return node and parents that are not evidence, in node order
+     */
+    static int[] family(Query query, int node) {
+        int[] parents = query.getNet().getParents(node);
+        int[] family = new int[parents.length+1];
+        int size = 0;
+        for (int i = 0; i <= parents.length; i++) {
+            int v = i < parents.length ? parents[i] : node;
+            if (!query.isEvidence(v)) {
+                family[size++] = v;
+            }
+        }
+        family = Arrays.copyOf(family, size);
+        Arrays.sort(family);
+        return family;
+    }
+
+    /**
+     * Builds the table of a node's CPT with the evidence set.
+     * @param net compiled Bayes Net
+     * @param node node index
+     * @param family non-evidence variables of the CPT, in node order
+     * @param assignment working assignment holding the evidence
+     * @return table over {@code family}
+     */
+    static double[] cptFactor(CompiledNet net, int node, int[] family, int[] assignment) {
+        double[] table = new double[net.getTableSize(family)];
+        for (int i = 0; i < table.length; i++) {
+            // Last variable is the lowest digit of the index
+            int rest = i;
+            for (int e = family.length-1; e >= 0; e--) {
+                int c = net.getCardinality(family[e]);
+                assignment[family[e]] = rest % c;
+                rest /= c;
+            }
+            table[i] = net.getProbability(node, assignment[node], assignment);
+        }
+        for (int v : family) {
+            assignment[v] = -1;
+        }
+        return table;
+    }
+
+    /**
+     * Multiplies a table into a table over a superset of its variables.
+     * @param table table to multiply into
+     * @param tableVars variables of {@code table}, in node order
+     * @param tableCard number of states of each variable of {@code table}
+     * @param factor table to multiply by
+     * @param factorVars variables of {@code factor}, in node order, all in {@code tableVars}
+     * @param factorCard number of states of each variable of {@code factor}
+     */
+    private static void multiplyIn(double[] table, int[] tableVars, int[] tableCard,
+                                   double[] factor, int[] factorVars, int[] factorCard) {
+        // Stride of each table variable in the factor (0 if absent)
+        int[] factorStride = Factor.strides(factorCard);
+        int[] stride = new int[tableVars.length];
+        for (int t = 0, f = 0; t < tableVars.length; t++) {
+            if (f < factorVars.length && factorVars[f] == tableVars[t]) {
+                stride[t] = factorStride[f];
+                f++;
+            }
+        }
+
+        int fi = 0;
+        int numVars = tableVars.length;
+        int[] digit = new int[numVars];
+        for (int i = 0; i < table.length; i++) {
+            table[i] *= factor[fi];
+            for (int v = numVars-1; v >= 0; v--) {
+                if (++digit[v] < tableCard[v]) {
+                    fi += stride[v];
+                    break;
+                }
+                digit[v] = 0;
+                fi -= stride[v] * (tableCard[v]-1);
+            }
+        }
+    }
+
+    /**
+     * Sums a table down to a subset of its variables, scaled to sum to 1 so long
+     * message chains do not underflow.
+     * @param table table to sum
+     * @param tableVars variables of {@code table}, in node order
+     * @param tableCard number of states of each variable of {@code table}
+     * @param toVars variables to keep, in node order, all in {@code tableVars}
+     * @return table over {@code toVars}
+     */
+    private static double[] marginal(double[] table, int[] tableVars, int[] tableCard, int[] toVars) {
+        boolean[] keep = new boolean[tableVars.length];
+        int length = 1;
+        for (int t = 0, k = 0; t < tableVars.length; t++) {
+            if (k < toVars.length && toVars[k] == tableVars[t]) {
+                keep[t] = true;
+                length *= tableCard[t];
+                k++;
+            }
+        }
+        double[] out = new double[length];
+        Factor.marginalize(table, tableCard, keep, out);
+
+        double total = 0;
+        for (double p : out) {
+            total += p;
+        }
+        if (total > 0) {
+            for (int i = 0; i < out.length; i++) {
+                out[i] /= total;
+            }
+        }
+        return out;
+    }
+}
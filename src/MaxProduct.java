@@ -0,0 +1,210 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.TreeSet;
+
+/**
+ * Max-product variable elimination for the most probable explanation (MPE) of the
+ * evidence, or the maximum a posteriori (MAP) values of some of the variables. The
+ * factors are the ones elimination uses. In one pass the variables that are not
+ * explained are summed out first, then the explained ones are maximized out, each
+ * keeping the product it was maximized out of. Their values are then traced back
+ * from the last one eliminated, when all the others in its product are known.
+ */
+public class MaxProduct {
+
+    /**
+     * Values of the explained variables with the largest probability.
+     */
+    public static class Explanation {
+        private final TreeSet<Variable> values;  // explained variables with their values
+        private final double probability;  // joint probability of the values and the evidence
+
+        /**
+         * Creates an explanation.
+         * @param values explained variables with their values
+         * @param probability joint probability of the values and the evidence
+         */
+        Explanation(TreeSet<Variable> values, double probability) {
+            this.values = values;
+            this.probability = probability;
+        }
+
+        /**
+         * Gets the explained variables with their values.
+         * @return the variables, in alphabetical order
+         */
+        public TreeSet<Variable> getValues() {
+            return values;
+        }
+
+        /**
+         * Gets the joint probability of the explanation and the evidence. Divided by the
+         * probability of the evidence it is the probability of the explanation given it.
+         * @return P(values, evidence)
+         */
+        public double getProbability() {
+            return probability;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            for (Variable v : values) {
+                sb.append(sb.length() > 0 ? "," : "").append(v.getName()).append('=').append(v.getStates()[v.getValue()]);
+            }
+            return sb.toString();
+        }
+    }
+
+    private final BayesNet bayesNet;  // Bayes Net of the query
+    private final TreeSet<Variable> evidence;  // given variables
+    private final TreeSet<Variable> explained;  // variables to find the most probable values of
+    private long largestFactor;  // entries of the largest factor built
+
+    /**
+     * Prepares a MAP query.
+     * @param bayesNet Bayes Net of the query
+     * @param evidence given variables
+     * @param explained variables to find the most probable values of, every variable that
+     *                  is not evidence for the MPE
+     */
+    public MaxProduct(BayesNet bayesNet, TreeSet<Variable> evidence, Collection<Variable> explained) {
+        this.bayesNet = bayesNet;
+        this.evidence = evidence;
+        this.explained = new TreeSet<>(explained);
+        for (Variable v : this.explained) {
+            if (evidence.contains(v)) {
+                throw new IllegalArgumentException(v.getName() + " is evidence");
+            }
+        }
+    }
+
+    /**
+     * Parses a query such as "P(* | J=t,M=t)" for the MPE of the evidence, or
+     * "P(B,E | J=t,M=t)" for the MAP values of B and E.
+     * @param bayesNet Bayes Net the query is over
+     * @param query query to parse
+     * @return the prepared query
+     */
+    public static MaxProduct parse(BayesNet bayesNet, String query) {
+        CompiledNet net = bayesNet.compile();
+        String q = query.trim();
+        if (!q.startsWith("P(") || !q.endsWith(")")) {
+            throw new IllegalArgumentException("Invalid query: " + query);
+        }
+        TreeSet<Variable> evidence = new TreeSet<>();
+        Driver.parseEvidence(q, evidence, net);
+
+        int bar = q.indexOf('|');
+        String names = q.substring(2, bar >= 0 ? bar : q.length()-1).trim();
+        ArrayList<Variable> explained = new ArrayList<>();
+        if (names.equals("*")) {
+            for (int i = 0; i < net.size(); i++) {
+                Variable v = new Variable(net.getName(i), net.getStates(i));
+                if (!evidence.contains(v)) {
+                    explained.add(v);
+                }
+            }
+        } else {
+            for (String name : names.split(",")) {
+                int node = net.indexOf(name.trim());
+                if (node < 0) {
+                    throw new IllegalArgumentException("Unknown variable " + name.trim());
+                }
+                explained.add(new Variable(net.getName(node), net.getStates(node)));
+            }
+        }
+        return new MaxProduct(bayesNet, evidence, explained);
+    }
+
+    /**
+     * Gets the given variables.
+     * @return the evidence
+     */
+    public TreeSet<Variable> getEvidence() {
+        return evidence;
+    }
+
+    /**
+     * Gets the variables whose most probable values are found.
+     * @return the explained variables, unset
+     */
+    public TreeSet<Variable> getExplained() {
+        return explained;
+    }
+
+    /**
+     * Gets the size of the largest factor built so far.
+     * @return entries of the largest factor built
+     */
+    public long getLargestFactor() {
+        return largestFactor;
+    }
+
+    /**
+     * Eliminates every variable that is not evidence and traces back the values of
+     * the explained ones.
+     * @return the most probable values of the explained variables
+     */
+    public Explanation solve() {
+        // Children before parents, as in elimination, with the summed variables first
+        ArrayList<Variable> order = new ArrayList<>();
+        ArrayList<Variable> maxed = new ArrayList<>();
+        ArrayList<Factor> factors = new ArrayList<>();
+        for (Variable var : bayesNet.getElimVars(evidence)) {
+            factors.add(made(bayesNet.makeFactor(var, evidence)));
+            if (explained.contains(var)) {
+                maxed.add(var);
+            } else if (!evidence.contains(var)) {
+                order.add(var);
+            }
+        }
+        order.addAll(maxed);
+
+        // Each maximized variable keeps the product it was maximized out of
+        Factor[] products = new Factor[maxed.size()];
+        int m = 0;
+        for (Variable var : order) {
+            Factor product = null;
+            Iterator<Factor> it = factors.iterator();
+            while (it.hasNext()) {
+                Factor f = it.next();
+                if (f.contains(var)) {
+                    product = product == null ? f : made(product.pointwiseMultiply(var, f));
+                    it.remove();
+                }
+            }
+            if (!explained.contains(var)) {
+                factors.add(made(product.sumOut(var)));
+            } else {
+                products[m++] = product;
+                factors.add(made(product.maxOut(var)));
+            }
+        }
+
+        // Only constants are left, their product is the largest joint probability
+        double probability = 1;
+        for (Factor f : factors) {
+            probability *= f.getProbability(0);
+        }
+
+        // The last variable maximized out only depends on itself, the one before only on it, and so on
+        TreeSet<Variable> values = new TreeSet<>();
+        for (int i = maxed.size()-1; i >= 0; i--) {
+            Variable var = maxed.get(i);
+            values.add(new Variable(var.getName(), var.getStates(), products[i].argMax(var, values)));
+        }
+        return new Explanation(values, probability);
+    }
+
+    /**
+     * Keeps track of the largest factor built.
+     * @param factor a factor built for the query
+     * @return the factor
+     */
+    private Factor made(Factor factor) {
+        largestFactor = Math.max(largestFactor, factor.size());
+        return factor;
+    }
+}
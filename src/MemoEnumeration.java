@@ -0,0 +1,210 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Enumeration that caches sub-sums. The sum over the variables from a position in
+ * the topological order on only depends on the values of the earlier variables
+ * that are parents of later ones (its context), so each sub-sum is computed once
+ * per context. Runs as an explicit loop over int arrays instead of recursing, and
+ * adds up the same terms in the same order as {@link Driver#enumerateAll}.
+ */
+public class MemoEnumeration {
+
+    private static final long MAX_DENSE_KEYS = 1 << 12;  // contexts with up to this many values use an array cache
+    private static final long MAX_KEYS = 1L << 62;  // contexts with up to this many values are cached at all, larger ones saturate past it
+
+    private final Query query;  // query to answer
+    private final CompiledNet net;  // Bayes Net of the query
+    private final int[] order;  // nodes in topological order
+    private final int[][] context;  // for each position, the earlier unset nodes the sub-sum depends on
+    private final long[] keySpace;  // for each position, number of values of its context (saturated)
+    private final boolean[] fixed;  // for each position, true if the query sets its variable
+    private long lookups;  // number of CPT lookups
+    private long hits;  // number of sub-sums taken from the cache
+
+    /**
+     * Prepares the enumeration of a query.
+     * @param query query to answer
+     */
+    public MemoEnumeration(Query query) {
+        this.query = query;
+        net = query.getNet();
+        order = net.getTopologicalOrder();
+        int n = order.length;
+
+        // Context of a position: nodes before it (not fixed by the query) that are
+        // parents of a node at or after it
+        context = new int[n+1][];
+        context[n] = new int[0];
+        fixed = new boolean[n];
+        for (int pos = 0; pos < n; pos++) {
+            fixed[pos] = query.isEvidence(order[pos]) || order[pos] == query.getQueryNode();
+        }
+        boolean[] needed = new boolean[net.size()];
+        for (int pos = n-1; pos >= 0; pos--) {
+            for (int p : net.getParents(order[pos])) {
+                needed[p] = true;
+            }
+            needed[order[pos]] = false;
+            int size = 0;
+            int[] ctx = new int[pos];
+            for (int e = 0; e < pos; e++) {
+                int v = order[e];
+                if (needed[v] && !fixed[e]) {
+                    ctx[size++] = v;
+                }
+            }
+            context[pos] = Arrays.copyOf(ctx, size);
+        }
+        keySpace = new long[n+1];
+        for (int pos = 0; pos <= n; pos++) {
+            long keys = 1;
+            for (int v : context[pos]) {
+                int card = net.getCardinality(v);
+                keys = keys > MAX_KEYS / card ? MAX_KEYS + 1 : keys * card;
+            }
+            keySpace[pos] = keys;
+        }
+    }
+
+    /**
+     * Sums over every variable once per value of the query variable.
+     * @return unnormalized probability of each value of the query variable
+     */
+    public double[] ask() {
+        double[] probabilities = new double[net.getCardinality(query.getQueryNode())];
+        for (int v = 0; v < probabilities.length; v++) {
+            probabilities[v] = enumerate(v);
+        }
+        return probabilities;
+    }
+
+    /**
+     * Gets the number of CPT lookups made so far.
+     * @return number of CPT lookups
+     */
+    public long getLookups() {
+        return lookups;
+    }
+
+    /**
+     * Gets the number of sub-sums taken from the cache so far.
+     * @return number of cache hits
+     */
+    public long getHits() {
+        return hits;
+    }
+
+    /**
+     * Sums over every variable with the query variable set.
+     * @param queryValue value of the query variable
+     * @return unnormalized probability of the query value and the evidence
+     */
+    public double enumerate(int queryValue) {
+        int n = order.length;
+        int[] assignment = query.newAssignment();
+        assignment[query.getQueryNode()] = queryValue;
+
+        // One cache per position, for this query value
+        double[][] dense = new double[n][];
+        ArrayList<HashMap<Long, Double>> sparse = new ArrayList<>(n);
+        for (int pos = 0; pos < n; pos++) {
+            if (keySpace[pos] <= MAX_DENSE_KEYS) {
+                dense[pos] = new double[(int)keySpace[pos]];
+                Arrays.fill(dense[pos], Double.NaN);
+            }
+            sparse.add(dense[pos] == null && keySpace[pos] <= MAX_KEYS ? new HashMap<>() : null);
+        }
+
+        // Explicit stack: for each position, the value whose branch is running and
+        // the total of the branches before it
+        int[] branch = new int[n];
+        double[] partial = new double[n];
+        long[] keys = new long[n];
+        int pos = 0;
+        double value = 0;  // value of the sub-sum that just finished
+        boolean returning = false;
+
+        while (true) {
+            if (!returning) {
+                if (pos == n) {
+                    // Nothing left to sum over
+                    value = 1;
+                    returning = true;
+                    pos--;
+                    continue;
+                }
+
+                // Look the sub-sum up before expanding it
+                keys[pos] = key(pos, assignment);
+                double cached = dense[pos] != null ? dense[pos][(int)keys[pos]]
+                        : sparse.get(pos) != null ? sparse.get(pos).getOrDefault(keys[pos], Double.NaN) : Double.NaN;
+                if (!Double.isNaN(cached)) {
+                    hits++;
+                    value = cached;
+                    returning = true;
+                    pos--;
+                    continue;
+                }
+
+                // Go down the branch of value 0 first (set variables only have one)
+                if (!fixed[pos]) {
+                    assignment[order[pos]] = 0;
+                }
+                branch[pos] = 0;
+                pos++;
+                continue;
+            }
+
+            if (pos < 0) {
+                return value;
+            }
+
+            int node = order[pos];
+            double result;
+            lookups++;
+            if (fixed[pos]) {
+                // Variable is set so only get the probability for its value
+                result = net.getProbability(node, assignment[node], assignment) * value;
+            } else {
+                int b = branch[pos];
+                double term = net.getProbability(node, b, assignment) * value;
+                partial[pos] = b == 0 ? term : partial[pos] + term;
+                if (b+1 < net.getCardinality(node)) {
+                    // Branch done, go down the branch of the next value
+                    assignment[node] = b+1;
+                    branch[pos] = b+1;
+                    returning = false;
+                    pos++;
+                    continue;
+                }
+                result = partial[pos];
+                assignment[node] = -1;
+            }
+
+            // Store the finished sub-sum and return it to the position before
+            if (dense[pos] != null) {
+                dense[pos][(int)keys[pos]] = result;
+            } else if (sparse.get(pos) != null) {
+                sparse.get(pos).put(keys[pos], result);
+            }
+            value = result;
+            pos--;
+        }
+    }
+
+    /**
+     * Builds the cache key of a position from the values of its context.
+     * @param pos position in the order
+     * @param assignment current assignment
+     * @return the context values as one number in mixed radix
+     */
+    private long key(int pos, int[] assignment) {
+        long key = 0;
+        for (int v : context[pos]) {
+            key = key * net.getCardinality(v) + assignment[v];
+        }
+        return key;
+    }
+}
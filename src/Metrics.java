@@ -0,0 +1,314 @@
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters, maximums and histograms of the work done by queries, shared safely
+ * between threads. Series are named the Prometheus way and can carry labels given
+ * as name, value pairs. The disabled registry {@link #NONE} ignores everything, and
+ * callers check {@link #isEnabled()} before measuring anything that costs time, so
+ * metrics are near-free when off. The series can be written as Prometheus text or
+ * as JSON.
+ */
+public class Metrics {
+
+    /** Registry that records nothing. */
+    public static final Metrics NONE = new Metrics(false);
+
+    /** Bucket bounds for durations in seconds, 1 us to 10 s. */
+    public static final double[] TIME_BUCKETS = {1e-6, 1e-5, 1e-4, 1e-3, 1e-2, 1e-1, 1, 10};
+
+    /** Bucket bounds for counts and sizes, powers of 4 from 1 to 4^15. */
+    public static final double[] SIZE_BUCKETS = new double[16];
+
+    static {
+        for (int i = 0; i < SIZE_BUCKETS.length; i++) {
+            SIZE_BUCKETS[i] = 1L << (2*i);
+        }
+    }
+
+    /**
+     * Kind of a series.
+     */
+    private enum Type {
+        COUNTER,  // running total
+        GAUGE,  // largest value seen
+        HISTOGRAM  // observations counted into buckets
+    }
+
+    /**
+     * One named and labeled series.
+     */
+    private static class Series {
+        final String name;  // metric name
+        final String[] labels;  // label names and values, alternating
+        final Type type;  // kind of series
+        final LongAdder count = new LongAdder();  // total of a counter, observations of a histogram
+        final AtomicLong max = new AtomicLong(Long.MIN_VALUE);  // largest value of a gauge
+        final DoubleAdder sum;  // sum of the observations of a histogram
+        final double[] bounds;  // upper bounds of the histogram buckets, +Inf implied
+        final LongAdder[] buckets;  // observations in each bucket, the last one unbounded
+
+        /**
+         * Creates an empty series.
+         * @param name metric name
+         * @param labels label names and values, alternating
+         * @param type kind of series
+         * @param bounds upper bounds of the buckets of a histogram, null otherwise
+         */
+        Series(String name, String[] labels, Type type, double[] bounds) {
+            this.name = name;
+            this.labels = labels;
+            this.type = type;
+            this.bounds = bounds;
+            if (type == Type.HISTOGRAM) {
+                sum = new DoubleAdder();
+                buckets = new LongAdder[bounds.length+1];
+                for (int b = 0; b < buckets.length; b++) {
+                    buckets[b] = new LongAdder();
+                }
+            } else {
+                sum = null;
+                buckets = null;
+            }
+        }
+    }
+
+    private final boolean enabled;  // false to record nothing
+    private final ConcurrentSkipListMap<String, Series> series = new ConcurrentSkipListMap<>();  // every series, by name then labels
+
+    /**
+     * Creates an empty registry that records.
+     */
+    public Metrics() {
+        this(true);
+    }
+
+    /**
+     * Creates an empty registry.
+     * @param enabled false to record nothing
+     */
+    private Metrics(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Checks if the registry records anything, so callers can skip measuring.
+     * @return true if it records
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Adds to a counter.
+     * @param name metric name, ending in _total
+     * @param amount amount to add
+     * @param labels label names and values, alternating
+     */
+    public void count(String name, long amount, String... labels) {
+        if (enabled) {
+            series(name, labels, Type.COUNTER, null).count.add(amount);
+        }
+    }
+
+    /**
+     * Raises a gauge that keeps the largest value it has seen.
+     * @param name metric name
+     * @param value value seen
+     * @param labels label names and values, alternating
+     */
+    public void max(String name, long value, String... labels) {
+        if (enabled) {
+            AtomicLong max = series(name, labels, Type.GAUGE, null).max;
+            long old = max.get();
+            while (value > old && !max.compareAndSet(old, value)) {
+                old = max.get();
+            }
+        }
+    }
+
+    /**
+     * Records an observation in a histogram.
+     * @param name metric name
+     * @param value value observed
+     * @param bounds upper bounds of the buckets, such as {@link #TIME_BUCKETS}; must be the
+     *               same every time for a series
+     * @param labels label names and values, alternating
+     */
+    public void observe(String name, double value, double[] bounds, String... labels) {
+        if (enabled) {
+            Series s = series(name, labels, Type.HISTOGRAM, bounds);
+            int b = 0;
+            while (b < s.bounds.length && value > s.bounds[b]) {
+                b++;
+            }
+            s.buckets[b].increment();
+            s.count.increment();
+            s.sum.add(value);
+        }
+    }
+
+    /**
+     * Gets a series, creating it on first use.
+     * @param name metric name
+     * @param labels label names and values, alternating
+     * @param type kind of series
+     * @param bounds upper bounds of the buckets of a histogram, null otherwise
+     * @return the series
+     */
+    private Series series(String name, String[] labels, Type type, double[] bounds) {
+        // A space sorts before any name character, so the series of one name stay together
+        StringBuilder key = new StringBuilder(name);
+        for (String label : labels) {
+            key.append(' ').append(label);
+        }
+        String k = key.toString();
+        Series s = series.get(k);
+        if (s == null) {
+            if (labels.length % 2 != 0) {
+                throw new IllegalArgumentException(name + " has a label without a value");
+            }
+            Series created = new Series(name, labels.clone(), type, bounds);
+            s = series.putIfAbsent(k, created);
+            if (s == null) {
+                s = created;
+            }
+        }
+        if (s.type != type) {
+            throw new IllegalArgumentException(name + " is a " + s.type.name().toLowerCase());
+        }
+        return s;
+    }
+
+    /**
+     * Writes every series in the Prometheus text format.
+     * @param out where to write
+     */
+    public void writePrometheus(PrintStream out) {
+        String previous = null;
+        for (Series s : series.values()) {
+            if (!s.name.equals(previous)) {
+                out.printf("# TYPE %s %s%n", s.name, s.type.name().toLowerCase());
+                previous = s.name;
+            }
+            switch (s.type) {
+                case COUNTER:
+                    out.println(s.name + labels(s.labels, null) + " " + s.count.sum());
+                    break;
+                case GAUGE:
+                    out.println(s.name + labels(s.labels, null) + " " + s.max.get());
+                    break;
+                default:
+                    long cumulative = 0;
+                    for (int b = 0; b < s.buckets.length; b++) {
+                        cumulative += s.buckets[b].sum();
+                        String le = b < s.bounds.length ? Double.toString(s.bounds[b]) : "+Inf";
+                        out.println(s.name + "_bucket" + labels(s.labels, le) + " " + cumulative);
+                    }
+                    out.println(s.name + "_sum" + labels(s.labels, null) + " " + s.sum.sum());
+                    out.println(s.name + "_count" + labels(s.labels, null) + " " + s.count.sum());
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Formats the labels of a Prometheus sample.
+     * @param labels label names and values, alternating
+     * @param le upper bound of a histogram bucket, null for none
+     * @return {name="value",...}, or "" if there are no labels
+     */
+    private static String labels(String[] labels, String le) {
+        ArrayList<String> pairs = new ArrayList<>();
+        for (int i = 0; i < labels.length; i += 2) {
+            pairs.add(labels[i] + "=\"" + escape(labels[i+1]) + "\"");
+        }
+        if (le != null) {
+            pairs.add("le=\"" + le + "\"");
+        }
+        return pairs.isEmpty() ? "" : "{" + String.join(",", pairs) + "}";
+    }
+
+    /**
+     * Writes every series as a JSON object with the counters, gauges and histograms
+     * in separate arrays. Histogram buckets are cumulative, as in Prometheus.
+     * @param out where to write
+     */
+    public void writeJson(PrintStream out) {
+        out.println("{");
+        Type[] types = Type.values();
+        for (int t = 0; t < types.length; t++) {
+            out.printf("  \"%ss\": [", types[t].name().toLowerCase());
+            boolean first = true;
+            for (Series s : series.values()) {
+                if (s.type != types[t]) {
+                    continue;
+                }
+                out.print(first ? "\n" : ",\n");
+                first = false;
+                out.print("    {\"name\": \"" + escape(s.name) + "\", \"labels\": {");
+                for (int i = 0; i < s.labels.length; i += 2) {
+                    out.print((i > 0 ? ", " : "") + "\"" + escape(s.labels[i]) + "\": \"" + escape(s.labels[i+1]) + "\"");
+                }
+                out.print("}, ");
+                switch (s.type) {
+                    case COUNTER:
+                        out.print("\"value\": " + s.count.sum() + "}");
+                        break;
+                    case GAUGE:
+                        out.print("\"value\": " + s.max.get() + "}");
+                        break;
+                    default:
+                        out.print("\"count\": " + s.count.sum() + ", \"sum\": " + s.sum.sum() + ", \"buckets\": [");
+                        long cumulative = 0;
+                        for (int b = 0; b < s.buckets.length; b++) {
+                            cumulative += s.buckets[b].sum();
+                            String le = b < s.bounds.length ? Double.toString(s.bounds[b]) : "\"+Inf\"";
+                            out.print((b > 0 ? ", " : "") + "{\"le\": " + le + ", \"count\": " + cumulative + "}");
+                        }
+                        out.print("]}");
+                        break;
+                }
+            }
+            out.print(first ? "]" : "\n  ]");
+            out.println(t < types.length-1 ? "," : "");
+        }
+        out.println("}");
+    }
+
+    /**
+     * Escapes backslashes, quotes and newlines for Prometheus label values and JSON strings.
+     * @param text text to escape
+     * @return the escaped text
+     */
+    private static String escape(String text) {
+        return text.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    /**
+     * Writes every series to a file, as JSON if its name ends in .json and as
+     * Prometheus text otherwise.
+     * @param file file to write
+     * @throws IOException if the file cannot be written
+     */
+    public void write(File file) throws IOException {
+        try (PrintStream out = new PrintStream(new BufferedOutputStream(new FileOutputStream(file)), false, "UTF-8")) {
+            if (file.getName().endsWith(".json")) {
+                writeJson(out);
+            } else {
+                writePrometheus(out);
+            }
+            if (out.checkError()) {
+                throw new IOException("could not write " + file);
+            }
+        }
+    }
+}
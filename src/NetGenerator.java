@@ -0,0 +1,399 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates random binary Bayes Nets and query sets for scaling tests. The same
+ * options and seed always give the same network and queries. Nodes are named
+ * N0, N1, ... padded to one width, so alphabetical order is generation order.
+ * CPT entries are rounded to 4 decimals so a network written to a .bn file and
+ * loaded back is exactly the one generated.
+ */
+public class NetGenerator {
+
+    /**
+     * Shape of the generated network.
+     */
+    public enum Topology {
+        CHAIN,  // each node is the only parent of the next one
+        POLYTREE,  // a random tree with random edge directions, so no undirected cycles
+        GRID,  // rows of treewidth nodes, each node's parents are the ones above and to the left
+        DAG  // random parents among the previous treewidth nodes
+    }
+
+    private static final double MIN_PROBABILITY = 0.05;  // smallest generated CPT entry
+    private static final double MAX_PROBABILITY = 0.95;  // largest generated CPT entry
+
+    private final String[] names;  // name of each node
+    private final int[][] parents;  // parent indices of each node, in CPT row order
+    private final double[][] probabilities;  // P(node = t | row) of each node
+    private final Random random;  // source of the network, then of the queries
+
+    /**
+     * Generates a network.
+     * @param topology shape of the network
+     * @param nodes number of nodes
+     * @param maxParents most parents of a node (a chain or polytree node has at most 1 or
+     *                   {@code maxParents} parents, a grid node at most 2)
+     * @param treewidth bound on the treewidth: the row length of a grid and the window a
+     *                  DAG node's parents are drawn from; chains and polytrees have treewidth 1
+     * @param seed seed of the random numbers
+     */
+    public NetGenerator(Topology topology, int nodes, int maxParents, int treewidth, long seed) {
+        if (nodes < 1 || maxParents < 1 || treewidth < 1) {
+            throw new IllegalArgumentException("Nodes, parents and treewidth must be at least 1");
+        }
+        random = new Random(seed);
+        names = new String[nodes];
+        String format = "N%0" + Integer.toString(nodes-1).length() + "d";
+        for (int i = 0; i < nodes; i++) {
+            names[i] = String.format(format, i);
+        }
+
+        switch (topology) {
+            case CHAIN:
+                parents = chain(nodes);
+                break;
+            case POLYTREE:
+                parents = polytree(nodes, maxParents);
+                break;
+            case GRID:
+                parents = grid(nodes, Math.min(maxParents, 2), treewidth);
+                break;
+            default:
+                parents = dag(nodes, maxParents, treewidth);
+                break;
+        }
+
+        probabilities = new double[nodes][];
+        for (int i = 0; i < nodes; i++) {
+            probabilities[i] = new double[1 << parents[i].length];
+            for (int r = 0; r < probabilities[i].length; r++) {
+                double p = MIN_PROBABILITY + (MAX_PROBABILITY - MIN_PROBABILITY) * random.nextDouble();
+                probabilities[i][r] = Math.round(p * 1e4) / 1e4;
+            }
+        }
+    }
+
+    /**
+     * Links every node to the one before it.
+     * @param nodes number of nodes
+     * @return parent indices of each node
+     */
+    private static int[][] chain(int nodes) {
+        int[][] parents = new int[nodes][];
+        parents[0] = new int[0];
+        for (int i = 1; i < nodes; i++) {
+            parents[i] = new int[]{i-1};
+        }
+        return parents;
+    }
+
+    /**
+     * Attaches every node to a random earlier one, pointing the edge either way. A
+     * new node has no edges yet, so it can always take the earlier node as a parent.
+     * @param nodes number of nodes
+     * @param maxParents most parents of a node
+     * @return parent indices of each node
+     */
+    private int[][] polytree(int nodes, int maxParents) {
+        int[][] parents = new int[nodes][0];
+        for (int i = 1; i < nodes; i++) {
+            int other = random.nextInt(i);
+            if (random.nextBoolean() && parents[other].length < maxParents) {
+                parents[other] = append(parents[other], i);
+            } else {
+                parents[i] = append(parents[i], other);
+            }
+        }
+        for (int[] p : parents) {
+            Arrays.sort(p);
+        }
+        return parents;
+    }
+
+    /**
+     * Lays the nodes out in rows, each node taking the node above it and the node to
+     * its left as parents.
+     * @param nodes number of nodes
+     * @param maxParents most parents of a node, 1 or 2
+     * @param width number of nodes in a row
+     * @return parent indices of each node
+     */
+    private static int[][] grid(int nodes, int maxParents, int width) {
+        int[][] parents = new int[nodes][0];
+        for (int i = 0; i < nodes; i++) {
+            if (i >= width) {
+                parents[i] = append(parents[i], i - width);
+            }
+            if (i % width > 0 && parents[i].length < maxParents) {
+                parents[i] = append(parents[i], i - 1);
+            }
+            Arrays.sort(parents[i]);
+        }
+        return parents;
+    }
+
+    /**
+     * Gives every node up to {@code maxParents} random parents among the {@code window}
+     * nodes before it. Neighbours in the moral graph are then never more than
+     * {@code window} apart, which bounds the treewidth by {@code window}.
+     * @param nodes number of nodes
+     * @param maxParents most parents of a node
+     * @param window how far back parents are drawn from
+     * @return parent indices of each node
+     */
+    private int[][] dag(int nodes, int maxParents, int window) {
+        int[][] parents = new int[nodes][];
+        for (int i = 0; i < nodes; i++) {
+            int candidates = Math.min(i, window);
+            int count = Math.min(candidates, random.nextInt(maxParents+1));
+            parents[i] = new int[count];
+            for (int p = 0; p < count; p++) {
+                int parent;
+                do {
+                    parent = i - 1 - random.nextInt(candidates);
+                } while (contains(parents[i], p, parent));
+                parents[i][p] = parent;
+            }
+            Arrays.sort(parents[i]);
+        }
+        return parents;
+    }
+
+    /**
+     * Adds a value to the end of an array.
+     * @param array the array
+     * @param value value to add
+     * @return a copy of the array with the value at the end
+     */
+    private static int[] append(int[] array, int value) {
+        int[] result = Arrays.copyOf(array, array.length+1);
+        result[array.length] = value;
+        return result;
+    }
+
+    /**
+     * Checks if a value is among the first entries of an array.
+     * @param array the array
+     * @param length number of entries to check
+     * @param value value to look for
+     * @return true if it is there
+     */
+    private static boolean contains(int[] array, int length, int value) {
+        for (int i = 0; i < length; i++) {
+            if (array[i] == value) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Gets the number of nodes.
+     * @return the number of nodes
+     */
+    public int size() {
+        return names.length;
+    }
+
+    /**
+     * Gets the number of edges.
+     * @return total number of parents
+     */
+    public long getEdgeCount() {
+        long edges = 0;
+        for (int[] p : parents) {
+            edges += p.length;
+        }
+        return edges;
+    }
+
+    /**
+     * Builds the generated network in memory.
+     * @return the Bayes Net
+     */
+    public BayesNet toBayesNet() {
+        BayesNet bayesNet = new BayesNet();
+        for (int i = 0; i < names.length; i++) {
+            String[] parentNames = new String[parents[i].length];
+            for (int p = 0; p < parentNames.length; p++) {
+                parentNames[p] = names[parents[i][p]];
+            }
+            bayesNet.add(parentNames, names[i], probabilities[i]);
+        }
+        return bayesNet;
+    }
+
+    /**
+     * Writes the generated network as a .bn file, roots as {@code P(X) = p} and every
+     * other node as a table with its true rows first.
+     * @param out where to write the network
+     */
+    public void write(PrintWriter out) {
+        StringBuilder row = new StringBuilder();
+        for (int i = 0; i < names.length; i++) {
+            if (i > 0) {
+                out.println();
+            }
+            int k = parents[i].length;
+            if (k == 0) {
+                out.println("P(" + names[i] + ") = " + probabilities[i][0]);
+                continue;
+            }
+
+            row.setLength(0);
+            for (int p : parents[i]) {
+                row.append(names[p]).append(' ');
+            }
+            int width = row.length();
+            row.append("| ").append(names[i]);
+            out.println(row);
+            row.setLength(0);
+            for (int c = 0; c < width; c++) {
+                row.append('-');
+            }
+            row.append("|-----");
+            out.println(row);
+
+            // Row r has parent p true when bit k-1-p of r is set (first parent most significant)
+            for (int r = probabilities[i].length-1; r >= 0; r--) {
+                row.setLength(0);
+                for (int p = 0; p < k; p++) {
+                    row.append(((r >> (k-1-p)) & 1) == 1 ? 't' : 'f');
+                    row.append(' ');
+                }
+                for (int c = 2*k; c < width; c++) {
+                    row.append(' ');
+                }
+                row.append("| ").append(probabilities[i][r]);
+                out.println(row);
+            }
+        }
+    }
+
+    /**
+     * Makes random queries. Each asks about a random node given up to
+     * {@code maxEvidence} other random nodes set to random values.
+     * @param count number of queries
+     * @param maxEvidence most evidence variables of a query
+     * @return the queries, such as "P(N12 | N3=t,N40=f)"
+     */
+    public List<String> queries(int count, int maxEvidence) {
+        ArrayList<String> queries = new ArrayList<>(count);
+        StringBuilder query = new StringBuilder();
+        int[] evidence = new int[Math.min(maxEvidence, names.length-1)];
+        for (int q = 0; q < count; q++) {
+            int node = random.nextInt(names.length);
+            int numEvidence = random.nextInt(evidence.length+1);
+            for (int e = 0; e < numEvidence; e++) {
+                int other;
+                do {
+                    other = random.nextInt(names.length);
+                } while (other == node || contains(evidence, e, other));
+                evidence[e] = other;
+            }
+            Arrays.sort(evidence, 0, numEvidence);
+
+            query.setLength(0);
+            query.append("P(").append(names[node]);
+            for (int e = 0; e < numEvidence; e++) {
+                query.append(e == 0 ? " | " : ",");
+                query.append(names[evidence[e]]).append('=').append(random.nextBoolean() ? 't' : 'f');
+            }
+            query.append(')');
+            queries.add(query.toString());
+        }
+        return queries;
+    }
+
+    /**
+     * Writes a network and, optionally, a query file for it.
+     * Usage: {@code [options] <out.bn> [queries.txt]} with the options
+     * {@code --topology <chain|polytree|grid|dag>} (default dag), {@code --nodes <n>}
+     * (default 100), {@code --max-parents <k>} (default 3), {@code --treewidth <w>}
+     * (default 8), {@code --seed <s>} (default 4365), {@code --queries <q>} (default 100)
+     * and {@code --evidence <e>} (most evidence variables per query, default 3).
+     * @param args command line arguments
+     */
+    public static void main(String[] args) {
+        Topology topology = Topology.DAG;
+        int nodes = 100;
+        int maxParents = 3;
+        int treewidth = 8;
+        long seed = 4365;
+        int numQueries = 100;
+        int maxEvidence = 3;
+        ArrayList<String> positional = new ArrayList<>();
+        NetGenerator generator;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if (args[i].equals("--topology")) {
+                    topology = Topology.valueOf(args[++i].toUpperCase());
+                } else if (args[i].equals("--nodes")) {
+                    nodes = Integer.parseInt(args[++i]);
+                } else if (args[i].equals("--max-parents")) {
+                    maxParents = Integer.parseInt(args[++i]);
+                } else if (args[i].equals("--treewidth")) {
+                    treewidth = Integer.parseInt(args[++i]);
+                } else if (args[i].equals("--seed")) {
+                    seed = Long.parseLong(args[++i]);
+                } else if (args[i].equals("--queries")) {
+                    numQueries = Integer.parseInt(args[++i]);
+                } else if (args[i].equals("--evidence")) {
+                    maxEvidence = Integer.parseInt(args[++i]);
+                } else {
+                    positional.add(args[i]);
+                }
+            }
+            if (numQueries < 0 || maxEvidence < 0) {
+                throw new IllegalArgumentException("Invalid query options");
+            }
+            if (maxParents > 30) {
+                throw new IllegalArgumentException("Too many parents");
+            }
+            generator = new NetGenerator(topology, nodes, maxParents, treewidth, seed);
+        } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+            System.out.println("Invalid option, should be --topology <chain|polytree|grid|dag>, --nodes <n>,"
+                    + " --max-parents <k>, --treewidth <w>, --seed <s>, --queries <q> or --evidence <e>");
+            System.exit(1);
+            return;
+        }
+        if (positional.size() < 1 || positional.size() > 2) {
+            System.out.println("Usage: [options] <out.bn> [queries.txt]");
+            System.exit(1);
+        }
+
+        try {
+            long start = System.nanoTime();
+            try (PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(new File(positional.get(0))), 1 << 16))) {
+                generator.write(out);
+                if (out.checkError()) {
+                    throw new IOException("could not write " + positional.get(0));
+                }
+            }
+            System.out.printf("Wrote %s: %d nodes, %d edges in %.3f ms%n", positional.get(0),
+                    generator.size(), generator.getEdgeCount(), (System.nanoTime() - start) / 1e6);
+            if (positional.size() > 1) {
+                try (PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(new File(positional.get(1)))))) {
+                    for (String query : generator.queries(numQueries, maxEvidence)) {
+                        out.println(query);
+                    }
+                    if (out.checkError()) {
+                        throw new IOException("could not write " + positional.get(1));
+                    }
+                }
+                System.out.printf("Wrote %s: %d queries%n", positional.get(1), numQueries);
+            }
+        } catch (IOException e) {
+            System.out.println("Generation failed: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+}
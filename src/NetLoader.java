@@ -0,0 +1,513 @@
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * Reads .bn files. The file is memory-mapped and tokenized byte by byte with no
+ * regex and no String per line, and the CPT rows go straight into the arrays
+ * handed to {@link BayesNet#add}. Variables are binary (states f and t) unless a
+ * line such as {@code Weather : sunny cloudy rainy} declares their states before
+ * they are used. Files in {@link BinaryNet} form are recognized by their first
+ * bytes and used in place. Each loader keeps the size and time of its last load
+ * so callers can report the throughput.
+ */
+public class NetLoader {
+
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };  // powers of ten that are exact doubles
+
+    private ByteBuffer buf;  // contents of the file being read
+    private String fileName;  // name of the file being read, for errors
+    private int line;  // line being read, for errors
+    private long bytes;  // size of the last file read
+    private int nodes;  // number of nodes in the last file read
+    private long entries;  // number of CPT entries in the last file read
+    private long nanos;  // time taken by the last load
+    private HashMap<String, String[]> declared;  // states declared for each variable in the file being read
+    private HashSet<String> used;  // variables the file being read has mentioned so far
+
+    /**
+     * Reads a Bayes Net from a .bn or binary file.
+     * @param file file to read
+     * @return the compiled Bayes Net in the file
+     * @throws FileNotFoundException if the file does not exist
+     * @throws IOException if the file cannot be read or is not a valid Bayes Net
+     */
+    public BayesNet load(File file) throws IOException {
+        long start = System.nanoTime();
+        ByteBuffer contents;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            contents = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (BinaryNet.isBinary(contents)) {
+            CompiledNet net;
+            try {
+                net = BinaryNet.read(contents);
+            } catch (IOException e) {
+                throw new IOException(file.getName() + ": " + e.getMessage());
+            }
+            bytes = contents.remaining();
+            nodes = net.size();
+            entries = net.getCptSize();
+            nanos = System.nanoTime() - start;
+            return new BayesNet(net);
+        }
+        return load(contents, file.getName(), start);
+    }
+
+    /**
+     * Reads a Bayes Net from the contents of a .bn file.
+     * @param contents bytes of the file, read from the current position to the limit
+     * @param name name of the file, for errors
+     * @return the compiled Bayes Net
+     * @throws IOException if the contents are not a valid .bn file
+     */
+    public BayesNet load(ByteBuffer contents, String name) throws IOException {
+        return load(contents, name, System.nanoTime());
+    }
+
+    /**
+     * Gets the size of the last file read.
+     * @return bytes read
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Gets the number of nodes of the last file read.
+     * @return number of nodes
+     */
+    public int getNodes() {
+        return nodes;
+    }
+
+    /**
+     * Gets the number of CPT entries of the last file read.
+     * @return number of CPT entries
+     */
+    public long getEntries() {
+        return entries;
+    }
+
+    /**
+     * Gets the time the last load took, including compiling the Bayes Net.
+     * @return nanoseconds taken
+     */
+    public long getNanos() {
+        return nanos;
+    }
+
+    @Override
+    public String toString() {
+        double seconds = nanos / 1e9;
+        return String.format("%d nodes, %d CPT entries, %d bytes in %.3f ms (%.1f MB/s)",
+                nodes, entries, bytes, seconds * 1000, bytes / 1e6 / Math.max(seconds, 1e-9));
+    }
+
+    /**
+     * Parses the contents of a .bn file.
+     * @param contents bytes of the file
+     * @param name name of the file, for errors
+     * @param start {@link System#nanoTime} the load started at
+     * @return the compiled Bayes Net
+     * @throws IOException if the contents are not a valid .bn file
+     */
+    private BayesNet load(ByteBuffer contents, String name, long start) throws IOException {
+        buf = contents;
+        fileName = name;
+        line = 1;
+        bytes = contents.remaining();
+        nodes = 0;
+        entries = 0;
+
+        declared = new HashMap<>();
+        used = new HashSet<>();
+        BayesNet bayesNet = new BayesNet();
+        ArrayList<String> names = new ArrayList<>();
+        while (skipBlankLines()) {
+            if (peek() == 'P' && peek(1) == '(') {
+                // P(X) = 0.3, or one probability per state for a variable with more states
+                buf.position(buf.position() + 2);
+                String child = name();
+                expect(')');
+                skipSpaces();
+                expect('=');
+                skipSpaces();
+                String[] states = states(child);
+                double[] probabilities = new double[states.length == 2 ? 1 : states.length];
+                for (int v = 0; v < probabilities.length; v++) {
+                    probabilities[v] = number();
+                    skipSpaces();
+                }
+                bayesNet.add(new String[]{}, child, states, probabilities);
+                entries += probabilities.length;
+                endLine();
+                nodes++;
+                continue;
+            }
+
+            String first = name();
+            skipSpaces();
+            if (peek() == ':') {
+                // Weather : sunny cloudy rainy
+                buf.get();
+                declare(first);
+                continue;
+            }
+
+            // A B | X, then a separator line and one row per parent assignment
+            names.clear();
+            names.add(first);
+            while (peek() != '|') {
+                names.add(name());
+                skipSpaces();
+            }
+            buf.get();
+            skipSpaces();
+            String child = name();
+            endLine();
+            skipLine();
+
+            String[] parents = names.toArray(new String[0]);
+            byte[][][] parentStates = new byte[parents.length][][];
+            long rows = 1;
+            for (int p = 0; p < parents.length; p++) {
+                parentStates[p] = bytes(states(parents[p]));
+                rows *= parentStates[p].length;
+                if (rows > Integer.MAX_VALUE) {
+                    throw error("too many parents");
+                }
+            }
+            String[] states = states(child);
+            int width = states.length == 2 ? 1 : states.length;  // probabilities per row
+            if (rows * width > Integer.MAX_VALUE) {
+                throw error("too many parents");
+            }
+            double[] probabilities = new double[(int)rows * width];
+            for (int row = 0; row < rows; row++) {
+                skipBlankLines();
+                int index = 0;
+                for (int p = 0; p < parents.length; p++) {
+                    index = index * parentStates[p].length + state(parentStates[p]);
+                    skipSpaces();
+                }
+                expect('|');
+                skipSpaces();
+                for (int v = 0; v < width; v++) {
+                    probabilities[index * width + v] = number();
+                    skipSpaces();
+                }
+                endLine();
+            }
+            bayesNet.add(parents, child, states, probabilities);
+            entries += probabilities.length;
+            nodes++;
+        }
+
+        // Compile once up front so queries only pay for inference; this is where a cycle,
+        // an undeclared parent or a CPT of the wrong size is found
+        try {
+            bayesNet.compile();
+        } catch (IllegalArgumentException e) {
+            throw error(e.getMessage());
+        }
+        buf = null;
+        declared = null;
+        used = null;
+        nanos = System.nanoTime() - start;
+        return bayesNet;
+    }
+
+    /**
+     * Reads a variable name: a letter or '_' followed by letters, digits, '_' and '-'.
+     * @return the name
+     * @throws IOException if there is no name at the current position
+     */
+    private String name() throws IOException {
+        int c = peek();
+        if (!(c >= 'A' && c <= 'Z' || c >= 'a' && c <= 'z' || c == '_')) {
+            throw error("expected a variable name");
+        }
+        return token();
+    }
+
+    /**
+     * Reads a run of name characters (letters, digits, '_' and '-').
+     * @return the characters read, possibly none
+     */
+    private String token() {
+        int begin = buf.position();
+        while (isNameChar(peek())) {
+            buf.get();
+        }
+        byte[] text = new byte[buf.position() - begin];
+        for (int i = 0; i < text.length; i++) {
+            text[i] = buf.get(begin + i);
+        }
+        return new String(text, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Reads the states declared for a variable, up to the end of the line.
+     * @param name the variable
+     * @throws IOException if the declaration comes too late or has fewer than 2 distinct states
+     */
+    private void declare(String name) throws IOException {
+        if (declared.containsKey(name) || used.contains(name)) {
+            throw error("states of " + name + " declared after it is used");
+        }
+        ArrayList<String> states = new ArrayList<>();
+        skipSpaces();
+        while (isNameChar(peek())) {
+            String state = token();
+            if (states.contains(state)) {
+                throw error(name + " has state " + state + " twice");
+            }
+            states.add(state);
+            skipSpaces();
+        }
+        if (states.size() < 2) {
+            throw error(name + " needs at least 2 states");
+        }
+        endLine();
+        declared.put(name, states.toArray(new String[0]));
+    }
+
+    /**
+     * Gets the states of a variable and marks it as used, after which its states
+     * can no longer be declared.
+     * @param name the variable
+     * @return the declared states, f and t if none were declared
+     */
+    private String[] states(String name) {
+        used.add(name);
+        String[] states = declared.get(name);
+        return states != null ? states : Variable.BINARY;
+    }
+
+    /**
+     * Converts state names to the bytes they appear as in the file.
+     * @param states state names
+     * @return ASCII bytes of each state
+     */
+    private static byte[][] bytes(String[] states) {
+        byte[][] bytes = new byte[states.length][];
+        for (int v = 0; v < states.length; v++) {
+            bytes[v] = states[v].getBytes(StandardCharsets.US_ASCII);
+        }
+        return bytes;
+    }
+
+    /**
+     * Reads the state of a variable in a CPT row.
+     * @param states ASCII bytes of the states of the variable
+     * @return value of the state read
+     * @throws IOException if there is none of the states at the current position
+     */
+    private int state(byte[][] states) throws IOException {
+        int begin = buf.position();
+        int limit = buf.limit();
+        if (begin < limit && (begin+1 == limit || !isNameChar(buf.get(begin+1)))) {
+            // One character, such as t or f
+            byte c = buf.get(begin);
+            for (int v = 0; v < states.length; v++) {
+                if (states[v].length == 1 && states[v][0] == c) {
+                    buf.position(begin+1);
+                    return v;
+                }
+            }
+        }
+        int end = begin;
+        while (end < limit && isNameChar(buf.get(end))) {
+            end++;
+        }
+        buf.position(end);
+        int length = end - begin;
+        for (int v = 0; v < states.length; v++) {
+            byte[] state = states[v];
+            if (state.length == length) {
+                int i = 0;
+                while (i < length && buf.get(begin + i) == state[i]) {
+                    i++;
+                }
+                if (i == length) {
+                    return v;
+                }
+            }
+        }
+        String[] expected = new String[states.length];
+        for (int v = 0; v < states.length; v++) {
+            expected[v] = new String(states[v], StandardCharsets.US_ASCII);
+        }
+        throw error("expected " + String.join(" or ", expected));
+    }
+
+    /**
+     * Reads a probability such as ".3", "0.95" or "1". Numbers of up to 15 digits
+     * with no exponent are converted with one exact division, which rounds the same
+     * as {@link Double#parseDouble}; anything else falls back to it.
+     * @return the number
+     * @throws IOException if there is no number at the current position
+     */
+    private double number() throws IOException {
+        int begin = buf.position();
+        long mantissa = 0;
+        int digits = 0;
+        int decimals = -1;
+        while (buf.hasRemaining()) {
+            byte c = buf.get(buf.position());
+            if (c >= '0' && c <= '9') {
+                mantissa = mantissa * 10 + (c - '0');
+                digits++;
+                if (decimals >= 0) {
+                    decimals++;
+                }
+            } else if (c == '.' && decimals < 0) {
+                decimals = 0;
+            } else {
+                break;
+            }
+            buf.get();
+        }
+        if (digits == 0) {
+            throw error("expected a probability");
+        }
+        if (buf.hasRemaining() && (peek() == 'e' || peek() == 'E') || digits > 15) {
+            // Rare, let the JDK do it
+            while (buf.hasRemaining() && !isSpace(peek()) && peek() != '\n' && peek() != '\r') {
+                buf.get();
+            }
+            byte[] text = new byte[buf.position() - begin];
+            for (int i = 0; i < text.length; i++) {
+                text[i] = buf.get(begin + i);
+            }
+            try {
+                return Double.parseDouble(new String(text, StandardCharsets.US_ASCII));
+            } catch (NumberFormatException e) {
+                throw error("expected a probability");
+            }
+        }
+        return decimals > 0 ? mantissa / POWERS_OF_TEN[decimals] : mantissa;
+    }
+
+    /**
+     * Skips blank lines.
+     * @return true if there is more to read
+     */
+    private boolean skipBlankLines() {
+        while (buf.hasRemaining()) {
+            int mark = buf.position();
+            skipSpaces();
+            if (!buf.hasRemaining()) {
+                return false;
+            }
+            if (peek() != '\n' && peek() != '\r') {
+                buf.position(mark);
+                return true;
+            }
+            skipLine();
+        }
+        return false;
+    }
+
+    /**
+     * Skips the rest of the line and its line break.
+     */
+    private void skipLine() {
+        while (buf.hasRemaining()) {
+            if (buf.get() == '\n') {
+                line++;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Checks that only spaces are left on the line and moves past it.
+     * @throws IOException if there is anything else
+     */
+    private void endLine() throws IOException {
+        skipSpaces();
+        if (buf.hasRemaining() && peek() != '\n' && peek() != '\r') {
+            throw error("unexpected '" + (char)peek() + "'");
+        }
+        skipLine();
+    }
+
+    /**
+     * Skips spaces and tabs.
+     */
+    private void skipSpaces() {
+        while (buf.hasRemaining() && isSpace(peek())) {
+            buf.get();
+        }
+    }
+
+    /**
+     * Moves past an expected byte.
+     * @param c byte that must come next
+     * @throws IOException if something else comes next
+     */
+    private void expect(char c) throws IOException {
+        if (peek() != c) {
+            throw error("expected '" + c + "'");
+        }
+        buf.get();
+    }
+
+    /**
+     * Gets the next byte without moving past it.
+     * @return the next byte, -1 at the end
+     */
+    private int peek() {
+        return peek(0);
+    }
+
+    /**
+     * Gets a byte ahead without moving past it.
+     * @param ahead how far ahead of the current position
+     * @return the byte, -1 past the end
+     */
+    private int peek(int ahead) {
+        int i = buf.position() + ahead;
+        return i < buf.limit() ? buf.get(i) : -1;
+    }
+
+    /**
+     * Checks if a byte can be part of a variable or state name.
+     * @param c byte to check
+     * @return true for a letter, digit, '_' or '-'
+     */
+    private static boolean isNameChar(int c) {
+        return c >= 'A' && c <= 'Z' || c >= 'a' && c <= 'z' || c >= '0' && c <= '9' || c == '_' || c == '-';
+    }
+
+    /**
+     * Checks if a byte is a space or tab.
+     * @param c byte to check
+     * @return true for a space or tab
+     */
+    private static boolean isSpace(int c) {
+        return c == ' ' || c == '\t';
+    }
+
+    /**
+     * Builds the error for the current line.
+     * @param message what went wrong
+     * @return the exception to throw
+     */
+    private IOException error(String message) {
+        return new IOException(fileName + ":" + line + ": " + message);
+    }
+}
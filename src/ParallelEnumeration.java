@@ -0,0 +1,131 @@
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Enumeration split over a fork/join pool. The top levels of the recursion tree
+ * are forked into tasks that each own a copy of the assignment; below the cutoff
+ * every task enumerates sequentially over the compiled arrays.
+ */
+public class ParallelEnumeration extends RecursiveTask<Double> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final CompiledNet net;  // Bayes Net being enumerated
+    private final int[] order;  // nodes in topological order
+    private final int[] assignment;  // values of the nodes before pos, owned by this task
+    private final int pos;  // position in order this task starts at
+    private final int forks;  // branching levels left to fork
+
+    /**
+     * Creates a task.
+     * @param net Bayes Net being enumerated
+     * @param order nodes in topological order
+     * @param assignment values of the nodes before {@code pos}, owned by this task
+     * @param pos position in {@code order} this task starts at
+     * @param forks branching levels left to fork
+     */
+    private ParallelEnumeration(CompiledNet net, int[] order, int[] assignment, int pos, int forks) {
+        this.net = net;
+        this.order = order;
+        this.assignment = assignment;
+        this.pos = pos;
+        this.forks = forks;
+    }
+
+    /**
+     * Gets the default number of branching levels to fork, enough for a few tasks per core.
+     * @param pool pool the tasks run on
+     * @return number of levels to fork
+     */
+    public static int defaultForks(ForkJoinPool pool) {
+        return 32 - Integer.numberOfLeadingZeros(pool.getParallelism()) + 2;
+    }
+
+    /**
+     * Answers a query by enumeration on a fork/join pool.
+     * @param query query to answer
+     * @param pool pool to run the tasks on
+     * @param forks branching levels to fork before enumerating sequentially
+     * @return normalized probability of each value of the query variable
+     */
+    public static double[] ask(Query query, ForkJoinPool pool, int forks) {
+        CompiledNet net = query.getNet();
+        int[] order = net.getTopologicalOrder();
+        double[] result = new double[net.getCardinality(query.getQueryNode())];
+        for (int value = 0; value < result.length; value++) {
+            int[] assignment = query.newAssignment();
+            assignment[query.getQueryNode()] = value;
+            result[value] = pool.invoke(new ParallelEnumeration(net, order, assignment, 0, forks));
+        }
+        double total = 0;
+        for (double r : result) {
+            total += r;
+        }
+        for (int value = 0; value < result.length; value++) {
+            result[value] /= total;
+        }
+        return result;
+    }
+
+    @Override
+    protected Double compute() {
+        // Skip ahead to the next unset variable, multiplying in the set ones
+        double probability = 1;
+        int p = pos;
+        while (p < order.length && assignment[order[p]] >= 0) {
+            probability *= net.getProbability(order[p], assignment[order[p]], assignment);
+            p++;
+        }
+        if (p == order.length) {
+            return probability;
+        }
+        if (forks == 0) {
+            return probability * enumerate(net, order, assignment, p);
+        }
+
+        // Fork every branch but the last, compute the last branch here
+        int node = order[p];
+        int last = net.getCardinality(node) - 1;
+        ParallelEnumeration[] tasks = new ParallelEnumeration[last];
+        for (int value = 0; value < last; value++) {
+            int[] branchAssignment = assignment.clone();
+            branchAssignment[node] = value;
+            tasks[value] = new ParallelEnumeration(net, order, branchAssignment, p, forks-1);
+            tasks[value].fork();
+        }
+        assignment[node] = last;
+        double lastProbability = new ParallelEnumeration(net, order, assignment, p, forks-1).compute();
+        double sum = 0;
+        for (ParallelEnumeration task : tasks) {
+            sum += task.join();
+        }
+        return probability * (sum + lastProbability);
+    }
+
+    /**
+     * Sequential enumeration of the nodes from {@code pos} on.
+     * @param net Bayes Net being enumerated
+     * @param order nodes in topological order
+     * @param assignment values of the nodes before {@code pos}, restored before returning
+     * @param pos position in {@code order} to start at
+     * @return combined probability of the nodes from {@code pos} on
+     */
+    static double enumerate(CompiledNet net, int[] order, int[] assignment, int pos) {
+        if (pos == order.length) {
+            return 1;
+        }
+        int node = order[pos];
+        if (assignment[node] >= 0) {
+            return net.getProbability(node, assignment[node], assignment)
+                    * enumerate(net, order, assignment, pos+1);
+        }
+
+        double retVal = 0;
+        for (int value = 0; value < net.getCardinality(node); value++) {
+            assignment[node] = value;
+            retVal += net.getProbability(node, value, assignment) * enumerate(net, order, assignment, pos+1);
+        }
+        assignment[node] = -1;
+        return retVal;
+    }
+}
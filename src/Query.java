@@ -0,0 +1,126 @@
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.TreeSet;
+
+/**
+ * Immutable query over a Bayes Net: a query variable and the evidence. All the
+ * state an inference needs while running is created per call from the query, so
+ * one Bayes Net can answer many queries from different threads at once.
+ */
+public class Query {
+
+    private final BayesNet bayesNet;  // Bayes Net the query is over
+    private final CompiledNet net;  // compiled form of the Bayes Net
+    private final int queryNode;  // node index of the query variable
+    private final int[] evidence;  // value of every node, -1 if not evidence
+    private final Variable[] given;  // evidence as given, including variables pruned from the net
+
+    /**
+     * Creates a query.
+     * @param bayesNet Bayes Net the query is over
+     * @param queryVar variable to query
+     * @param evidence given variables in the query
+     */
+    public Query(BayesNet bayesNet, Variable queryVar, Collection<Variable> evidence) {
+        this.bayesNet = bayesNet;
+        net = bayesNet.compile();
+        queryNode = net.indexOf(queryVar.getName());
+        if (queryNode < 0) {
+            throw new IllegalArgumentException("Unknown variable " + queryVar.getName());
+        }
+        this.evidence = bayesNet.getAssignment(evidence);
+        given = new Variable[evidence.size()];
+        int i = 0;
+        for (Variable v : evidence) {
+            given[i++] = new Variable(v.getName(), v.getStates(), v.getValue());
+        }
+    }
+
+    /**
+     * Parses a query such as "P(B | J=t,M=t)".
+     * @param bayesNet Bayes Net the query is over
+     * @param query query to parse
+     * @return the parsed query
+     */
+    public static Query parse(BayesNet bayesNet, String query) {
+        TreeSet<Variable> evidence = new TreeSet<>();
+        Variable queryVar = Driver.parseQuery(query, evidence, bayesNet.compile());
+        return new Query(bayesNet, queryVar, evidence);
+    }
+
+    /**
+     * Gets the Bayes Net the query is over.
+     * @return the Bayes Net
+     */
+    public BayesNet getBayesNet() {
+        return bayesNet;
+    }
+
+    /**
+     * Gets the compiled form of the Bayes Net the query is over.
+     * @return the compiled Bayes Net
+     */
+    public CompiledNet getNet() {
+        return net;
+    }
+
+    /**
+     * Gets the node index of the query variable.
+     * @return node index of the query variable
+     */
+    public int getQueryNode() {
+        return queryNode;
+    }
+
+    /**
+     * Gets the value of a node in the evidence.
+     * @param node node index
+     * @return value of the node, -1 if the node is not evidence
+     */
+    public int getEvidence(int node) {
+        return evidence[node];
+    }
+
+    /**
+     * Checks if a node is in the evidence.
+     * @param node node index
+     * @return true if the node is evidence
+     */
+    public boolean isEvidence(int node) {
+        return evidence[node] >= 0;
+    }
+
+    /**
+     * Creates a working assignment for one inference, starting from the evidence.
+     * @return value of every node, -1 if not evidence
+     */
+    public int[] newAssignment() {
+        return Arrays.copyOf(evidence, evidence.length);
+    }
+
+    /**
+     * Creates an unset variable for the query variable, owned by the caller.
+     * @return the query variable
+     */
+    public Variable getQueryVariable() {
+        return new Variable(net.getName(queryNode), net.getStates(queryNode));
+    }
+
+    /**
+     * Creates the evidence variables, owned by the caller. Evidence that is not in
+     * the Bayes Net (because it was pruned away) is included but has no effect.
+     * @return the evidence variables in alphabetical order
+     */
+    public TreeSet<Variable> getEvidenceVariables() {
+        TreeSet<Variable> vars = new TreeSet<>();
+        for (Variable v : given) {
+            vars.add(new Variable(v.getName(), v.getStates(), v.getValue()));
+        }
+        return vars;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("P(%s%s)", net.getName(queryNode), Driver.formatEvidence(getEvidenceVariables()));
+    }
+}
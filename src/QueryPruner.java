@@ -0,0 +1,210 @@
+import java.util.ArrayDeque;
+
+/**
+ * Cuts a Bayes Net down to the part that can affect a query before inference.
+ * Barren nodes (not ancestors of the query or the evidence) are removed, then
+ * every node d-separated from the query by the evidence is removed too.
+ */
+public class QueryPruner {
+
+    /**
+     * Query over the pruned Bayes Net and what was removed.
+     */
+    public static class Result {
+        private final Query query;  // the query over the pruned Bayes Net
+        private final int removedNodes;  // nodes removed from the Bayes Net
+        private final int removedEntries;  // CPT entries removed from the Bayes Net
+
+        /**
+         * Creates a result.
+         * @param query the query over the pruned Bayes Net
+         * @param removedNodes nodes removed from the Bayes Net
+         * @param removedEntries CPT entries removed from the Bayes Net
+         */
+        Result(Query query, int removedNodes, int removedEntries) {
+            this.query = query;
+            this.removedNodes = removedNodes;
+            this.removedEntries = removedEntries;
+        }
+
+        /**
+         * Gets the query over the pruned Bayes Net.
+         * @return the pruned query
+         */
+        public Query getQuery() {
+            return query;
+        }
+
+        /**
+         * Gets the number of nodes removed.
+         * @return nodes removed from the Bayes Net
+         */
+        public int getRemovedNodes() {
+            return removedNodes;
+        }
+
+        /**
+         * Gets the number of CPT entries removed.
+         * @return CPT entries removed from the Bayes Net
+         */
+        public int getRemovedEntries() {
+            return removedEntries;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("removed %d nodes, %d CPT entries", removedNodes, removedEntries);
+        }
+    }
+
+    /**
+     * Prunes the Bayes Net of a query. The pruned query gives the same normalized
+     * answer as the original one.
+     * @param query query to prune for
+     * @return the query over the pruned Bayes Net
+     */
+    public static Result prune(Query query) {
+        CompiledNet net = query.getNet();
+        int n = net.size();
+        boolean[][] relevance = relevance(query);
+        boolean[] keep = relevance[0];
+        boolean[] condition = relevance[1];
+
+        // Build the pruned Bayes Net
+        BayesNet pruned = new BayesNet();
+        int removedNodes = 0;
+        int removedEntries = 0;
+        for (int i = 0; i < n; i++) {
+            int[] parents = net.getParents(i);
+            int entries = net.getCptLength(i);
+            if (keep[i]) {
+                String[] parentNames = new String[parents.length];
+                for (int p = 0; p < parents.length; p++) {
+                    parentNames[p] = net.getName(parents[p]);
+                }
+                double[] probabilities = new double[entries];
+                for (int e = 0; e < entries; e++) {
+                    probabilities[e] = net.getCpt(i, e);
+                }
+                pruned.add(parentNames, net.getName(i), net.getStates(i), probabilities);
+            } else if (condition[i]) {
+                // One row, certain of the observed value
+                int card = net.getCardinality(i);
+                double[] certain = new double[card == 2 ? 1 : card];
+                certain[card == 2 ? 0 : query.getEvidence(i)] = card == 2 ? query.getEvidence(i) : 1;
+                pruned.add(new String[]{}, net.getName(i), net.getStates(i), certain);
+                removedEntries += entries - certain.length;
+            } else {
+                removedNodes++;
+                removedEntries += entries;
+            }
+        }
+
+        Query prunedQuery = new Query(pruned, query.getQueryVariable(), query.getEvidenceVariables());
+        return new Result(prunedQuery, removedNodes, removedEntries);
+    }
+
+    /**
+     * Finds the evidence that can affect a query: the evidence the pruned Bayes Net
+     * keeps. Queries that differ only in the other evidence have the same answer.
+     * @param query query to check
+     * @return true for each evidence node that can affect the query
+     */
+    public static boolean[] relevantEvidence(Query query) {
+        boolean[][] relevance = relevance(query);
+        boolean[] relevant = new boolean[relevance[0].length];
+        for (int i = 0; i < relevant.length; i++) {
+            relevant[i] = query.isEvidence(i) && (relevance[0][i] || relevance[1][i]);
+        }
+        return relevant;
+    }
+
+    /**
+     * Finds the nodes the pruned Bayes Net keeps.
+     * @param query query to prune for
+     * @return true for each node whose CPT is kept, then true for each evidence node
+     *         kept as a root certain of its value
+     */
+    private static boolean[][] relevance(Query query) {
+        CompiledNet net = query.getNet();
+        int n = net.size();
+
+        // Ancestors of the query and the evidence, everything else is barren
+        boolean[] ancestral = new boolean[n];
+        ArrayDeque<Integer> queue = new ArrayDeque<>();
+        for (int i = 0; i < n; i++) {
+            if (i == query.getQueryNode() || query.isEvidence(i)) {
+                ancestral[i] = true;
+                queue.add(i);
+            }
+        }
+        while (!queue.isEmpty()) {
+            for (int p : net.getParents(queue.remove())) {
+                if (!ancestral[p]) {
+                    ancestral[p] = true;
+                    queue.add(p);
+                }
+            }
+        }
+
+        // Hidden nodes connected to the query in the moral graph of the ancestral
+        // nodes once the evidence is removed, the rest are d-separated from it
+        boolean[] connected = new boolean[n];
+        connected[query.getQueryNode()] = true;
+        queue.add(query.getQueryNode());
+        while (!queue.isEmpty()) {
+            int curr = queue.remove();
+            for (int p : net.getParents(curr)) {
+                visit(p, ancestral, connected, query, queue);
+            }
+            for (int c : net.getChildren(curr)) {
+                if (!ancestral[c]) {
+                    continue;
+                }
+                visit(c, ancestral, connected, query, queue);
+                // Parents of a shared child are married in the moral graph
+                for (int p : net.getParents(c)) {
+                    visit(p, ancestral, connected, query, queue);
+                }
+            }
+        }
+
+        // Keep the CPTs of connected nodes and of evidence with a connected parent
+        boolean[] keep = new boolean[n];
+        for (int i = 0; i < n; i++) {
+            keep[i] = connected[i];
+            if (query.isEvidence(i) && ancestral[i]) {
+                for (int p : net.getParents(i)) {
+                    keep[i] |= connected[p];
+                }
+            }
+        }
+
+        // Evidence that a kept CPT is conditioned on stays as a root with its value certain
+        boolean[] condition = new boolean[n];
+        for (int i = 0; i < n; i++) {
+            if (keep[i]) {
+                for (int p : net.getParents(i)) {
+                    condition[p] = !keep[p];
+                }
+            }
+        }
+
+        return new boolean[][]{keep, condition};
+    }
+
+    /**
+     * Marks a hidden ancestral node as connected to the query.
+     * @param node node to visit
+     * @param ancestral true for each ancestral node
+     * @param connected true for each node connected to the query so far
+     * @param query query being pruned
+     * @param queue nodes to search from
+     */
+    private static void visit(int node, boolean[] ancestral, boolean[] connected, Query query, ArrayDeque<Integer> queue) {
+        if (ancestral[node] && !connected[node] && !query.isEvidence(node)) {
+            connected[node] = true;
+            queue.add(node);
+        }
+    }
+}
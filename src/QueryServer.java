@@ -0,0 +1,261 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Long-running server that keeps Bayes Nets loaded and answers queries over a
+ * local TCP socket with a line protocol.
+ *
+ * <p>Each request is one line, {@code <network> <mechanism> <query>} with a mechanism of
+ * {@link Driver#MECHANISMS} (enum, elim, jtree, penum, memo, bucket, lw, gibbs, bp or auto), answered with
+ * {@code OK <P(value 0)> <P(value 1)> ... <microseconds>} (P(false) and P(true) for a
+ * binary variable) or {@code ERR <message>}.
+ * {@code STATS} returns the latency percentiles and {@code QUIT} closes the connection.
+ */
+public class QueryServer {
+
+    private static final int LATENCY_SAMPLES = 1 << 16;  // latencies kept for percentiles
+
+    private final HashMap<String, BayesNet> networks;  // loaded networks by name
+    private final ThreadPoolExecutor workers;  // runs the queries
+    private final ExecutorService connections;  // reads requests and writes responses
+    private final long[] latencies;  // ring buffer of recent query latencies (ns)
+    private long numQueries;  // number of queries answered
+    private long numRejected;  // number of queries rejected because the queue was full
+    private volatile ResultCache results;  // answers shared by all the workers, null for none
+
+    /**
+     * Creates a server.
+     * @param networks loaded networks by name
+     * @param numWorkers number of worker threads running queries
+     * @param queueSize number of queries that can wait for a worker
+     */
+    public QueryServer(HashMap<String, BayesNet> networks, int numWorkers, int queueSize) {
+        this.networks = networks;
+        workers = new ThreadPoolExecutor(numWorkers, numWorkers, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueSize), new ThreadPoolExecutor.AbortPolicy());
+        workers.prestartAllCoreThreads();
+        connections = Executors.newCachedThreadPool();
+        latencies = new long[LATENCY_SAMPLES];
+    }
+
+    /**
+     * Sets the cache the workers look answers up in and keep them in.
+     * @param results cache of answers, null for none
+     */
+    public void setResultCache(ResultCache results) {
+        this.results = results;
+    }
+
+    /**
+     * Accepts connections until the server socket is closed.
+     * @param server socket to accept connections on
+     * @throws IOException if accepting fails
+     */
+    public void serve(ServerSocket server) throws IOException {
+        try {
+            while (!server.isClosed()) {
+                Socket socket = server.accept();
+                connections.execute(() -> handle(socket));
+            }
+        } finally {
+            connections.shutdownNow();
+            workers.shutdownNow();
+        }
+    }
+
+    /**
+     * Answers the requests of one connection in order.
+     * @param socket connection to the client
+     */
+    private void handle(Socket socket) {
+        try (Socket s = socket;
+             BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+             PrintWriter out = new PrintWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty()) {
+                    continue;
+                }
+                if (line.equals("QUIT")) {
+                    break;
+                }
+                out.println(line.equals("STATS") ? stats() : answer(line));
+                // Keep pipelined requests buffered, flush once the client waits
+                if (!in.ready()) {
+                    out.flush();
+                }
+            }
+        } catch (IOException e) {
+            // Client went away, nothing to answer
+        }
+    }
+
+    /**
+     * Runs one request on the worker pool.
+     * @param request {@code <network> <mechanism> <query>}
+     * @return response line
+     */
+    private String answer(String request) {
+        String[] parts = request.split("\\s+", 3);
+        if (parts.length != 3) {
+            return "ERR expected <network> <mechanism> <query>";
+        }
+        BayesNet bayesNet = networks.get(parts[0]);
+        if (bayesNet == null) {
+            return "ERR unknown network " + parts[0];
+        }
+
+        long start = System.nanoTime();
+        Future<double[]> future;
+        try {
+            future = workers.submit(() -> {
+                Driver driver = new Driver(Trace.NONE);
+                driver.setResultCache(results);
+                return driver.ask(parts[1], Query.parse(bayesNet, parts[2]));
+            });
+        } catch (RejectedExecutionException e) {
+            synchronized (this) {
+                numRejected++;
+            }
+            return "ERR busy";
+        }
+
+        try {
+            double[] result = future.get();
+            long latency = System.nanoTime() - start;
+            synchronized (this) {
+                latencies[(int)(numQueries++ % LATENCY_SAMPLES)] = latency;
+            }
+            StringBuilder sb = new StringBuilder("OK");
+            for (double p : result) {
+                sb.append(String.format(" %.16f", p));
+            }
+            return sb.append(' ').append(latency / 1000).toString();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            return "ERR " + (cause.getMessage() != null ? cause.getMessage() : cause.getClass().getSimpleName());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return "ERR interrupted";
+        }
+    }
+
+    /**
+     * Summarizes the latencies of the recent queries.
+     * @return "STATS count=.. rejected=.. p50=..us p99=..us max=..us", then the result
+     *         cache's "hits=.. misses=.." if there is one
+     */
+    private String stats() {
+        long[] recent;
+        long count;
+        long rejected;
+        synchronized (this) {
+            count = numQueries;
+            rejected = numRejected;
+            recent = Arrays.copyOf(latencies, (int)Math.min(count, LATENCY_SAMPLES));
+        }
+        ResultCache cache = results;
+        String cached = cache != null ? String.format(" hits=%d misses=%d", cache.getHits(), cache.getMisses()) : "";
+        if (recent.length == 0) {
+            return String.format("STATS count=0 rejected=%d", rejected) + cached;
+        }
+        Arrays.sort(recent);
+        return String.format("STATS count=%d rejected=%d p50=%dus p99=%dus max=%dus",
+                count, rejected,
+                recent[(int)(recent.length * 0.50)] / 1000,
+                recent[Math.min((int)(recent.length * 0.99), recent.length-1)] / 1000,
+                recent[recent.length-1] / 1000) + cached;
+    }
+
+    /**
+     * Starts the server.
+     * Usage: {@code [--port N] [--workers N] [--queue N] [--result-cache N] [name=]file.bn ...}
+     * Networks are named after their file (without ".bn") unless a name is given.
+     * {@code --result-cache N} keeps the answers of up to N exact queries.
+     * @param args command line arguments
+     */
+    public static void main(String[] args) {
+        int port = 4365;
+        int numWorkers = Runtime.getRuntime().availableProcessors();
+        int queueSize = 1024;
+        int cacheSize = 0;
+        HashMap<String, BayesNet> networks = new HashMap<>();
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if (args[i].equals("--port")) {
+                    port = Integer.parseInt(args[++i]);
+                } else if (args[i].equals("--workers")) {
+                    numWorkers = Integer.parseInt(args[++i]);
+                } else if (args[i].equals("--queue")) {
+                    queueSize = Integer.parseInt(args[++i]);
+                } else if (args[i].equals("--result-cache")) {
+                    cacheSize = Integer.parseInt(args[++i]);
+                } else {
+                    int eq = args[i].indexOf('=');
+                    File file = new File(args[i].substring(eq+1));
+                    String name = eq >= 0 ? args[i].substring(0, eq) : file.getName().replaceFirst("\\.bnb?$", "");
+                    NetLoader loader = new NetLoader();
+                    networks.put(name, loader.load(file));
+                    System.out.println("Loaded " + name + ": " + loader);
+                }
+            }
+        } catch (FileNotFoundException e) {
+            System.out.println("File not found: " + e.getMessage());
+            System.exit(1);
+        } catch (IOException e) {
+            System.out.println("Invalid Bayes Net: " + e.getMessage());
+            System.exit(1);
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            System.out.println("Usage: [--port N] [--workers N] [--queue N] [--result-cache N] [name=]file.bn ...");
+            System.exit(1);
+        }
+        if (numWorkers < 1 || queueSize < 1) {
+            System.out.println("--workers and --queue must be at least 1");
+            System.out.println("Usage: [--port N] [--workers N] [--queue N] [--result-cache N] [name=]file.bn ...");
+            System.exit(1);
+        }
+        if (cacheSize < 0) {
+            System.out.println("Invalid cache capacity");
+            System.out.println("Usage: [--port N] [--workers N] [--queue N] [--result-cache N] [name=]file.bn ...");
+            System.exit(1);
+        }
+        if (networks.isEmpty()) {
+            System.out.println("No networks given.");
+            System.exit(1);
+        }
+
+        try (ServerSocket server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress())) {
+            System.out.printf("Serving %s on %s:%d with %d workers%n",
+                    networks.keySet(), server.getInetAddress().getHostAddress(), server.getLocalPort(), numWorkers);
+            QueryServer queryServer = new QueryServer(networks, numWorkers, queueSize);
+            if (cacheSize > 0) {
+                queryServer.setResultCache(new ResultCache(cacheSize));
+            }
+            queryServer.serve(server);
+        } catch (IOException e) {
+            System.out.println("Server error: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,204 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bounded cache of whole query answers. An answer is keyed by the fingerprint of
+ * the network, the mechanism, the query variable and the evidence that can affect
+ * it ({@link QueryPruner#relevantEvidence}), so queries that differ only in
+ * irrelevant evidence share one entry. Changing a Bayes Net changes its fingerprint,
+ * so answers from before the change are never used again and age out. When more
+ * than the capacity are cached the least recently used answers are evicted. The
+ * cache can be saved to a file and loaded back in a later run.
+ */
+public class ResultCache {
+
+    /** Mechanisms whose answers are cached; the others depend on budgets and seeds. */
+    public static final List<String> MECHANISMS = Arrays.asList("enum", "elim", "jtree", "penum", "memo", "bucket", "auto");
+
+    private final LinkedHashMap<String, double[]> results = new LinkedHashMap<>(16, 0.75f, true);  // cached answers, least recently used first
+    private final int capacity;  // most answers kept
+    private long hits;  // lookups that found an answer
+    private long misses;  // lookups that did not
+    private long evictions;  // answers evicted to make room
+
+    /**
+     * Creates an empty cache.
+     * @param capacity most answers kept
+     */
+    public ResultCache(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Result cache capacity must be at least 1");
+        }
+        this.capacity = capacity;
+    }
+
+    /**
+     * Makes the key of a query.
+     * @param mechanism mechanism answering the query
+     * @param query the query
+     * @return "fingerprint mechanism X | A=s,B=s" with only the relevant evidence, in node order
+     */
+    public static String key(String mechanism, Query query) {
+        CompiledNet net = query.getNet();
+        StringBuilder key = new StringBuilder();
+        key.append(String.format("%016x", net.getFingerprint())).append(' ').append(mechanism).append(' ');
+        key.append(net.getName(query.getQueryNode()));
+        boolean[] relevant = QueryPruner.relevantEvidence(query);
+        String separator = " | ";
+        for (int i = 0; i < relevant.length; i++) {
+            if (relevant[i]) {
+                key.append(separator).append(net.getName(i)).append('=').append(net.getStates(i)[query.getEvidence(i)]);
+                separator = ",";
+            }
+        }
+        return key.toString();
+    }
+
+    /**
+     * Looks up an answer and counts the hit or miss.
+     * @param key key of the query
+     * @return a copy of the cached answer, null if there is none
+     */
+    public synchronized double[] get(String key) {
+        double[] result = results.get(key);
+        if (result == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return result.clone();
+    }
+
+    /**
+     * Caches an answer, evicting the least recently used one if the cache is full.
+     * @param key key of the query
+     * @param result normalized probability of each value of the query variable
+     */
+    public synchronized void put(String key, double[] result) {
+        results.put(key, result.clone());
+        evict();
+    }
+
+    /**
+     * Evicts the least recently used answers until the rest fit.
+     */
+    private void evict() {
+        Iterator<Map.Entry<String, double[]>> it = results.entrySet().iterator();
+        while (results.size() > capacity && it.hasNext()) {
+            it.next();
+            it.remove();
+            evictions++;
+        }
+    }
+
+    /**
+     * Reads answers saved by {@link #save}, as the most recently used ones. Answers
+     * of networks that have changed since are read too but never match a key again.
+     * @param file file to read
+     * @throws IOException if the file cannot be read or is not a saved cache
+     */
+    public synchronized void load(File file) throws IOException {
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            int lineNumber = 0;
+            while ((line = in.readLine()) != null) {
+                lineNumber++;
+                String[] fields = line.split("\t");
+                if (fields.length < 3) {
+                    throw new IOException(file.getName() + ":" + lineNumber + ": expected a key and probabilities");
+                }
+                double[] result = new double[fields.length-1];
+                try {
+                    for (int v = 0; v < result.length; v++) {
+                        result[v] = Double.parseDouble(fields[v+1]);
+                    }
+                } catch (NumberFormatException e) {
+                    throw new IOException(file.getName() + ":" + lineNumber + ": " + e.getMessage());
+                }
+                results.put(fields[0], result);
+            }
+        }
+        evict();
+    }
+
+    /**
+     * Writes every answer to a file, one per line as the key and the probabilities
+     * separated by tabs, least recently used first. The file is written next to the
+     * old one and then renamed over it, so a failed save leaves the old one intact.
+     * @param file file to write
+     * @throws IOException if the file cannot be written
+     */
+    public synchronized void save(File file) throws IOException {
+        File temp = new File(file.getAbsoluteFile().getParentFile(), file.getName() + ".tmp");
+        try (PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(temp), StandardCharsets.UTF_8)))) {
+            for (Map.Entry<String, double[]> entry : results.entrySet()) {
+                out.print(entry.getKey());
+                for (double p : entry.getValue()) {
+                    // Double.toString reads back to the same double
+                    out.print('\t');
+                    out.print(p);
+                }
+                out.println();
+            }
+            if (out.checkError()) {
+                throw new IOException("could not write " + temp);
+            }
+        }
+        if (!temp.renameTo(file) && !(file.delete() && temp.renameTo(file))) {
+            throw new IOException("could not replace " + file);
+        }
+    }
+
+    /**
+     * Gets the number of lookups that found an answer.
+     * @return the hits
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * Gets the number of lookups that did not find an answer.
+     * @return the misses
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Gets the number of answers evicted to make room.
+     * @return the evictions
+     */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * Gets the number of cached answers.
+     * @return the number of answers
+     */
+    public synchronized int size() {
+        return results.size();
+    }
+
+    @Override
+    public synchronized String toString() {
+        long lookups = hits + misses;
+        return String.format("%d hits, %d misses (%.1f%% hit), %d evictions, %d answers cached",
+                hits, misses, lookups > 0 ? 100.0 * hits / lookups : 0.0, evictions, results.size());
+    }
+}
@@ -0,0 +1,380 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Approximate inference by sampling the CPTs, for networks too large for the exact
+ * mechanisms. Independent chains run in parallel on a fork/join pool, each with its
+ * own {@link SplittableRandom} split from one seed, until the sample budget or the
+ * time limit runs out. The spread of the chain estimates gives the standard error.
+ */
+public class Sampler {
+
+    /**
+     * How the samples are drawn.
+     */
+    public enum Method {
+        LIKELIHOOD_WEIGHTING,  // forward samples with the evidence fixed, weighted by its likelihood
+        GIBBS  // Markov chain resampling each hidden variable from its Markov blanket
+    }
+
+    /**
+     * Estimated posterior of a query variable.
+     */
+    public static class Estimate {
+        private final double[] probabilities;  // estimated probability of each value of the variable
+        private final double standardError;  // largest standard error of the values, NaN if it cannot be told
+        private final long samples;  // samples drawn over all chains
+        private final int chains;  // number of chains
+
+        /**
+         * Creates an estimate.
+         * @param probabilities estimated probability of each value of the variable
+         * @param standardError largest standard error of the values, NaN with fewer than two weighted chains
+         * @param samples samples drawn over all chains
+         * @param chains number of chains
+         */
+        Estimate(double[] probabilities, double standardError, long samples, int chains) {
+            this.probabilities = probabilities;
+            this.standardError = standardError;
+            this.samples = samples;
+            this.chains = chains;
+        }
+
+        /**
+         * Gets the estimated probabilities.
+         * @return estimated probability of each value of the variable
+         */
+        public double[] getProbabilities() {
+            return probabilities.clone();
+        }
+
+        /**
+         * Gets the standard error of the estimate, the largest over the values (both
+         * values of a binary variable have the same).
+         * @return standard error, NaN with fewer than two weighted chains
+         */
+        public double getStandardError() {
+            return standardError;
+        }
+
+        /**
+         * Gets the number of samples drawn.
+         * @return samples drawn over all chains
+         */
+        public long getSamples() {
+            return samples;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d samples in %d chains, standard error %.6f", samples, chains, standardError);
+        }
+    }
+
+    private static final int CHECK_INTERVAL = 256;  // samples between checks of the time limit
+
+    private final Method method;  // how the samples are drawn
+    private final long samples;  // samples to draw over all chains
+    private final long timeLimit;  // milliseconds before the chains stop, 0 for none
+    private final int chains;  // number of independent chains
+    private final long seed;  // seed the chain generators are split from
+
+    /**
+     * Creates a sampler.
+     * @param method how the samples are drawn
+     * @param samples samples to draw over all chains
+     * @param timeLimit milliseconds before the chains stop early, 0 for none
+     * @param chains number of independent chains
+     * @param seed seed the chain generators are split from
+     */
+    public Sampler(Method method, long samples, long timeLimit, int chains, long seed) {
+        if (samples < 1 || timeLimit < 0 || chains < 1) {
+            throw new IllegalArgumentException("Invalid sampling budget");
+        }
+        this.method = method;
+        this.samples = samples;
+        this.timeLimit = timeLimit;
+        this.chains = chains;
+        this.seed = seed;
+    }
+
+    /**
+     * Gets the default number of chains for a pool, at least eight so the standard error
+     * is not taken from just a couple of chains.
+     * @param pool pool the chains run on
+     * @return number of chains
+     */
+    public static int defaultChains(ForkJoinPool pool) {
+        return Math.max(8, pool.getParallelism());
+    }
+
+    /**
+     * Estimates the posterior of the query variable.
+     * @param query query to answer
+     * @param pool pool to run the chains on
+     * @return the estimate
+     */
+    public Estimate ask(Query query, ForkJoinPool pool) {
+        long deadline = timeLimit > 0 ? System.nanoTime() + timeLimit * 1000000 : Long.MAX_VALUE;
+        long perChain = (samples + chains - 1) / chains;
+
+        // Split the generators up front so the chains are the same on every run
+        SplittableRandom root = new SplittableRandom(seed);
+        List<Callable<double[]>> tasks = new ArrayList<>();
+        for (int c = 0; c < chains; c++) {
+            SplittableRandom random = root.split();
+            tasks.add(() -> method == Method.GIBBS
+                    ? gibbs(query, random, perChain, deadline)
+                    : likelihoodWeighting(query, random, perChain, deadline));
+        }
+
+        // Each chain returns the weight of each value and its number of samples
+        double[][] totals = new double[chains][];
+        List<Future<double[]>> futures = pool.invokeAll(tasks);
+        for (int c = 0; c < chains; c++) {
+            try {
+                totals[c] = futures.get(c).get();
+            } catch (Exception e) {
+                throw new IllegalStateException("Sampling chain failed", e);
+            }
+        }
+
+        // Pool the weights for the estimate, use the chain estimates for its error
+        int card = query.getNet().getCardinality(query.getQueryNode());
+        double[] weights = new double[card];
+        long drawn = 0;
+        for (double[] t : totals) {
+            for (int v = 0; v < card; v++) {
+                weights[v] += t[v];
+            }
+            drawn += (long)t[card];
+        }
+        double[] estimate = normalize(weights, card);
+        double[] squares = new double[card];
+        int weighted = 0;  // chains with any weight (all of a chain's samples can contradict the evidence)
+        for (double[] t : totals) {
+            double[] chainEstimate = normalize(t, card);
+            if (chainEstimate != null) {
+                for (int v = 0; v < card; v++) {
+                    double diff = chainEstimate[v] - estimate[v];
+                    squares[v] += diff * diff;
+                }
+                weighted++;
+            }
+        }
+        double standardError = Double.NaN;
+        if (weighted > 1) {
+            standardError = 0;
+            for (int v = 0; v < card; v++) {
+                standardError = Math.max(standardError, Math.sqrt(squares[v] / (weighted - 1) / weighted));
+            }
+        }
+        return new Estimate(estimate, standardError, drawn, chains);
+    }
+
+    /**
+     * Turns the weights of a chain into probabilities. Value 0 takes what the others
+     * leave, so a binary variable gets {1 - p, p}.
+     * @param weights weight of each value of the query variable first
+     * @param card number of values of the query variable
+     * @return probability of each value, null if there is no weight
+     */
+    private static double[] normalize(double[] weights, int card) {
+        double total = 0;
+        for (int v = 0; v < card; v++) {
+            total += weights[v];
+        }
+        if (!(total > 0)) {
+            return null;
+        }
+        double[] probabilities = new double[card];
+        double rest = 1;
+        for (int v = 1; v < card; v++) {
+            probabilities[v] = weights[v] / total;
+            rest -= probabilities[v];
+        }
+        probabilities[0] = rest;
+        return probabilities;
+    }
+
+    /**
+     * Runs one likelihood weighting chain.
+     * @param query query to answer
+     * @param random generator owned by this chain
+     * @param budget samples to draw
+     * @param deadline {@link System#nanoTime} to stop at
+     * @return weight of each value of the query variable, then the samples drawn
+     */
+    private static double[] likelihoodWeighting(Query query, SplittableRandom random, long budget, long deadline) {
+        CompiledNet net = query.getNet();
+        int[] order = net.getTopologicalOrder();
+        int queryNode = query.getQueryNode();
+        int card = net.getCardinality(queryNode);
+        int[] assignment = query.newAssignment();
+        double[] weights = new double[card+1];
+        long drawn = 0;
+        while (drawn < budget) {
+            if (drawn > 0 && drawn % CHECK_INTERVAL == 0 && System.nanoTime() >= deadline) {
+                break;
+            }
+
+            // Sample the hidden variables in order, weigh by the evidence
+            double weight = 1;
+            for (int node : order) {
+                if (query.isEvidence(node)) {
+                    weight *= net.getProbability(node, assignment[node], assignment);
+                } else {
+                    assignment[node] = sample(net, node, assignment, random.nextDouble());
+                }
+            }
+            weights[assignment[queryNode]] += weight;
+            drawn++;
+        }
+        weights[card] = drawn;
+        return weights;
+    }
+
+    /**
+     * Runs one Gibbs chain. The first tenth of the budget is burn-in. Each sweep adds the
+     * distribution of the query variable given its Markov blanket instead of its sampled
+     * value, which has a lower variance.
+     * @param query query to answer
+     * @param random generator owned by this chain
+     * @param budget sweeps to make
+     * @param deadline {@link System#nanoTime} to stop at
+     * @return weight of each value of the query variable, then the sweeps counted
+     */
+    private static double[] gibbs(Query query, SplittableRandom random, long budget, long deadline) {
+        CompiledNet net = query.getNet();
+        int queryNode = query.getQueryNode();
+        int card = net.getCardinality(queryNode);
+        int[] assignment = query.newAssignment();
+
+        // Start from a forward sample
+        for (int node : net.getTopologicalOrder()) {
+            if (!query.isEvidence(node)) {
+                assignment[node] = sample(net, node, assignment, random.nextDouble());
+            }
+        }
+        int[] hidden = new int[net.size()];
+        int numHidden = 0;
+        int maxCard = 0;
+        for (int node = 0; node < net.size(); node++) {
+            if (!query.isEvidence(node)) {
+                hidden[numHidden++] = node;
+                maxCard = Math.max(maxCard, net.getCardinality(node));
+            }
+        }
+
+        long burnIn = budget / 10;
+        double[] weights = new double[card+1];
+        double[] distribution = new double[maxCard];
+        long counted = 0;
+        for (long sweep = 0; sweep < burnIn + budget; sweep++) {
+            if (sweep % CHECK_INTERVAL == 0 && System.nanoTime() >= deadline) {
+                if (counted > 0) {
+                    break;
+                }
+                burnIn = Math.min(burnIn, sweep);  // out of time, count from here on
+            }
+            for (int h = 0; h < numHidden; h++) {
+                int node = hidden[h];
+                blanketDistribution(net, node, assignment, distribution);
+                assignment[node] = draw(distribution, net.getCardinality(node), random.nextDouble());
+                if (node == queryNode && sweep >= burnIn) {
+                    for (int v = 1; v < card; v++) {
+                        weights[v] += distribution[v];
+                    }
+                    counted++;
+                }
+            }
+        }
+
+        // Value 0 gets the rest of each sweep
+        double rest = counted;
+        for (int v = 1; v < card; v++) {
+            rest -= weights[v];
+        }
+        weights[0] = rest;
+        weights[card] = counted;
+        return weights;
+    }
+
+    /**
+     * Samples a variable from its CPT given its parents.
+     * @param net compiled Bayes Net
+     * @param node variable to sample
+     * @param assignment values of every variable, the parents must be set
+     * @param u uniform random number in [0, 1)
+     * @return sampled value
+     */
+    private static int sample(CompiledNet net, int node, int[] assignment, double u) {
+        int card = net.getCardinality(node);
+        if (card == 2) {
+            return u < net.getProbability(node, 1, assignment) ? 1 : 0;
+        }
+        double cumulative = 0;
+        for (int value = 0; value < card-1; value++) {
+            cumulative += net.getProbability(node, value, assignment);
+            if (u < cumulative) {
+                return value;
+            }
+        }
+        return card-1;
+    }
+
+    /**
+     * Draws a value from a distribution. A binary variable is true if {@code u} is below
+     * the probability of true, the others take the first value whose cumulative
+     * probability is above {@code u}.
+     * @param distribution probability of each value
+     * @param card number of values
+     * @param u uniform random number in [0, 1)
+     * @return drawn value
+     */
+    private static int draw(double[] distribution, int card, double u) {
+        if (card == 2) {
+            return u < distribution[1] ? 1 : 0;
+        }
+        double cumulative = 0;
+        for (int value = 0; value < card-1; value++) {
+            cumulative += distribution[value];
+            if (u < cumulative) {
+                return value;
+            }
+        }
+        return card-1;
+    }
+
+    /**
+     * Gets the distribution of a variable given the rest of the assignment, which only
+     * depends on its Markov blanket.
+     * @param net compiled Bayes Net
+     * @param node variable to resample
+     * @param assignment values of every variable, restored before returning
+     * @param distribution filled with the probability of each value of {@code node},
+     *                     certain of its current value if every value is impossible
+     */
+    private static void blanketDistribution(CompiledNet net, int node, int[] assignment, double[] distribution) {
+        int current = assignment[node];
+        int card = net.getCardinality(node);
+        double total = 0;
+        for (int value = 0; value < card; value++) {
+            assignment[node] = value;
+            double weight = net.getProbability(node, value, assignment);
+            for (int child : net.getChildren(node)) {
+                weight *= net.getProbability(child, assignment[child], assignment);
+            }
+            distribution[value] = weight;
+            total += weight;
+        }
+        assignment[node] = current;
+        for (int value = 0; value < card; value++) {
+            distribution[value] = total > 0 ? distribution[value] / total : value == current ? 1 : 0;
+        }
+    }
+}
@@ -0,0 +1,158 @@
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Sink for the trace of enumeration and elimination. Callers check
+ * {@link #isEnabled(Level)} before building a trace line, so a disabled trace costs
+ * one comparison per step.
+ */
+public class Trace implements Closeable {
+
+    /**
+     * How much of a query is traced. Each level includes the ones before it.
+     */
+    public enum Level {
+        NONE,  // nothing
+        SUMMARY,  // the result of each query
+        STEP,  // one line per variable eliminated
+        FULL  // every enumeration call and every factor after each elimination step
+    }
+
+    /** Trace that prints nothing. */
+    public static final Trace NONE = new Trace(Level.NONE, null);
+
+    private static final String END = new String();  // tells the async writer to stop, compared by reference so no printed string matches it
+
+    private final Level level;  // deepest level that is printed
+    private final PrintStream out;  // where trace lines go
+    private final BlockingQueue<String> queue;  // lines waiting for the async writer, null if synchronous
+    private final Thread writer;  // async writer thread, null if synchronous
+    private final boolean ownsOut;  // true if out was opened by the trace and is closed with it
+
+    /**
+     * Creates a synchronous trace.
+     * @param level deepest level that is printed
+     * @param out where trace lines go, should be buffered
+     */
+    public Trace(Level level, PrintStream out) {
+        this.level = level;
+        this.out = out;
+        queue = null;
+        writer = null;
+        ownsOut = false;
+    }
+
+    /**
+     * Creates a trace that writes to a file through a buffer.
+     * @param level deepest level that is printed
+     * @param fileName file to write to
+     * @param async true to hand lines to a background writer thread
+     * @throws FileNotFoundException if the file cannot be created
+     */
+    public Trace(Level level, String fileName, boolean async) throws FileNotFoundException {
+        this.level = level;
+        out = new PrintStream(new BufferedOutputStream(new FileOutputStream(fileName), 1 << 16), false);
+        ownsOut = true;
+        if (async) {
+            queue = new ArrayBlockingQueue<>(1 << 14);
+            writer = new Thread(this::drain, "trace-writer");
+            writer.setDaemon(true);
+            writer.start();
+        } else {
+            queue = null;
+            writer = null;
+        }
+    }
+
+    /**
+     * Checks if a level is printed.
+     * @param l level to check
+     * @return true if lines of level {@code l} should be printed
+     */
+    public boolean isEnabled(Level l) {
+        return l.compareTo(level) <= 0 && l != Level.NONE;
+    }
+
+    /**
+     * Prints text.
+     * @param s text to print
+     */
+    public void print(String s) {
+        if (level == Level.NONE) {
+            return;
+        }
+        if (queue == null) {
+            out.print(s);
+            return;
+        }
+        try {
+            queue.put(s);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Prints a line.
+     * @param s line to print
+     */
+    public void println(String s) {
+        print(s + System.lineSeparator());
+    }
+
+    /**
+     * Prints formatted text.
+     * @param format format string
+     * @param args format arguments
+     */
+    public void printf(String format, Object... args) {
+        print(String.format(format, args));
+    }
+
+    /**
+     * Writes lines from the queue until the end marker.
+     */
+    private void drain() {
+        try {
+            String s;
+            while ((s = queue.take()) != END) {
+                out.print(s);
+            }
+        } catch (InterruptedException e) {
+            // Stop writing
+        }
+        out.flush();
+    }
+
+    /**
+     * Writes out everything printed so far. Does nothing for an async trace, whose
+     * writer flushes when it is closed.
+     */
+    public void flush() {
+        if (out != null && queue == null) {
+            out.flush();
+        }
+    }
+
+    @Override
+    public void close() {
+        if (writer != null) {
+            try {
+                queue.put(END);
+                writer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (ownsOut) {
+            out.close();
+        } else if (out != null) {
+            out.flush();
+        }
+    }
+}
@@ -1,61 +1,111 @@
 /**
- * Object to represent a variable and its assignment.
+ * Object to represent a variable and its assignment. A variable has a name and a
+ * number of states; binary variables have the states "f" and "t" (values 0 and 1).
  */
 public class Variable implements Comparable<Variable> {
 
-    private char name;  // name of the variable
-    private boolean isSet;  // true if the variable has been set
-    private boolean value;  // value of the variable
+    /** States of a binary variable, in value order. */
+    static final String[] BINARY = {"f", "t"};
+
+    private String name;  // name of the variable
+    private String[] states;  // name of each state, in value order
+    private int value = -1;  // value of the variable, -1 if it has not been set
+
+    /**
+     * Create unset binary variable.
+     * @param name variable name
+     */
+    public Variable(String name) {
+        this(name, BINARY);
+    }
 
     /**
      * Create unset variable.
      * @param name variable name
+     * @param states name of each state, in value order
      */
-    public Variable(char name) {
+    public Variable(String name, String[] states) {
         this.name = name;
+        this.states = states;
     }
 
     /**
-     * Create preset variable.
+     * Create preset binary variable.
      * @param name variable name
      * @param value preset variable value
      */
-    public Variable(char name, boolean value) {
+    public Variable(String name, boolean value) {
         this(name);
-        isSet = true;
-        this.value = value;
+        setValue(value);
+    }
+
+    /**
+     * Create preset variable.
+     * @param name variable name
+     * @param states name of each state, in value order
+     * @param value preset variable value
+     */
+    public Variable(String name, String[] states, int value) {
+        this(name, states);
+        setValue(value);
     }
 
     /**
      * Gets the name of the variable.
      * @return variable name
      */
-    public char getName() {
+    public String getName() {
         return name;
     }
 
+    /**
+     * Gets the number of states of the variable.
+     * @return number of states
+     */
+    public int getCardinality() {
+        return states.length;
+    }
+
+    /**
+     * Gets the states of the variable. The returned array must not be modified.
+     * @return name of each state, in value order
+     */
+    public String[] getStates() {
+        return states;
+    }
+
     /**
      * Gets the value of the variable.
-     * @return variable value if it has been set, false otherwise
+     * @return variable value if it has been set, 0 otherwise
      */
-    public boolean getValue() {
-        return isSet ? value : false;
+    public int getValue() {
+        return isSet() ? value : 0;
     }
 
     /**
      * Sets the value of the variable.
+     * @param val value to set the variable to, from 0 to {@code getCardinality()-1}
+     */
+    public void setValue(int val) {
+        if (val < 0 || val >= states.length) {
+            throw new IllegalArgumentException(String.format("%s has no value %d", name, val));
+        }
+        value = val;
+    }
+
+    /**
+     * Sets the value of a binary variable.
      * @param val value to set the variable to
      */
     public void setValue(boolean val) {
-        value = val;
-        isSet = true;
+        setValue(val ? 1 : 0);
     }
 
     /**
      * Clears the value of the variable.
      */
     public void unsetValue() {
-        isSet = false;
+        value = -1;
     }
 
     /**
@@ -63,31 +113,31 @@ public class Variable implements Comparable<Variable> {
      * @return true if variable has been set
      */
     public boolean isSet() {
-        return isSet;
+        return value >= 0;
     }
 
     @Override
     public int hashCode() {
-        return name;
+        return name.hashCode();
     }
 
     @Override
     public boolean equals(Object obj) {
         if (obj instanceof Variable) {
             Variable other = (Variable)obj;
-            return name == other.name;
+            return name.equals(other.name);
         }
         return false;
     }
 
     @Override
     public String toString() {
-        return String.format("%c%s", name, isSet ? String.format(" = %c", value ? 't' : 'f') : "");
+        return isSet() ? name + " = " + states[value] : name;
     }
 
     @Override
     // Alphabetical order
     public int compareTo(Variable other) {
-        return name - other.name;
+        return name.compareTo(other.name);
     }
 }